@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Measures how many weather rows a second bulkInsert gets through at the size of one forecast,
+    of a thousand rows, and of a hundred thousand, against inserting each row with db.insert()
+    as bulkInsert used to.  The rates are logged so that runs can be compared across changes;
+    only the rows are checked, since timings vary too much between devices to assert on.
+ */
+public class TestBulkInsert extends AndroidTestCase {
+    private static final String LOG_TAG = TestBulkInsert.class.getSimpleName();
+
+    private static final int[] SIZES = {14, 1000, 100000};
+
+    // Rows go in this many to a call, so that the largest size doesn't hold a hundred thousand
+    // ContentValues at once.  It also keeps every date within the range Time can handle.
+    private static final int DAYS_PER_CALL = 1000;
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+
+    private WeatherDbHelper mDbHelper;
+    private long[] mLocationIds;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(
+                WeatherContract.IntradayEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+
+        // Each call goes to a location of its own, since the days repeat from call to call
+        mDbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        int calls = (SIZES[SIZES.length - 1] + DAYS_PER_CALL - 1) / DAYS_PER_CALL;
+        mLocationIds = new long[calls];
+        for (int i = 0; i < calls; i++) {
+            ContentValues locationValues = TestUtilities.createNorthPoleLocationValues();
+            locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, "benchmark" + i);
+            mLocationIds[i] = db.insert(LocationEntry.TABLE_NAME, null, locationValues);
+            assertTrue("Error: Failure to insert location " + i, mLocationIds[i] != -1);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mDbHelper.close();
+        super.tearDown();
+    }
+
+    public void testBulkInsertThroughput() {
+        // Warm up both paths so that class loading isn't counted
+        insertWithProvider(SIZES[0]);
+        insertEachRow(SIZES[0]);
+
+        for (int size : SIZES) {
+            long eachRowNanos = insertEachRow(size);
+            long compiledNanos = insertWithProvider(size);
+            Log.d(LOG_TAG, size + " rows, db.insert(): " + rowsPerSecond(size, eachRowNanos) +
+                    " rows/s; bulkInsert: " + rowsPerSecond(size, compiledNanos) + " rows/s");
+            assertEquals("Error: bulkInsert didn't store every row", size, countWeatherRows());
+        }
+    }
+
+    /*
+        A row that isn't made of the usual columns can't use the compiled insert.  It goes
+        through db.insert() instead, which still refuses it if it breaks a constraint.
+     */
+    public void testBulkInsertOtherColumns() {
+        ContentValues partial = TestUtilities.createWeatherValues(mLocationIds[0]);
+        partial.remove(WeatherEntry.COLUMN_DEGREES);
+        ContentValues full = TestUtilities.createWeatherValues(mLocationIds[1]);
+        full.put(WeatherEntry.COLUMN_DATE,
+                WeatherContract.normalizeDate(TestUtilities.TEST_DATE));
+        full.put(WeatherEntry.COLUMN_MAX_TEMP, 75.5);
+        full.put(WeatherEntry.COLUMN_MIN_TEMP, 65.25);
+
+        int inserted = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                new ContentValues[]{partial, full});
+        assertEquals("Error: The row missing a NOT NULL column should be skipped", 1, inserted);
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null,
+                null, null, null);
+        TestUtilities.validateCursor("Error: The full row didn't round trip", cursor, full);
+        cursor.close();
+    }
+
+    /*
+        @return how long the provider's bulkInsert took, in nanoseconds
+     */
+    private long insertWithProvider(int size) {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        long nanos = 0;
+        for (int call = 0; call * DAYS_PER_CALL < size; call++) {
+            ContentValues[] values = createWeatherValues(call,
+                    Math.min(DAYS_PER_CALL, size - call * DAYS_PER_CALL));
+            long start = System.nanoTime();
+            int inserted = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                    values);
+            nanos += System.nanoTime() - start;
+            assertEquals(values.length, inserted);
+        }
+        return nanos;
+    }
+
+    /*
+        @return how long inserting the rows one db.insert() at a time took, in nanoseconds
+     */
+    private long insertEachRow(int size) {
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        long nanos = 0;
+        for (int call = 0; call * DAYS_PER_CALL < size; call++) {
+            ContentValues[] values = createWeatherValues(call,
+                    Math.min(DAYS_PER_CALL, size - call * DAYS_PER_CALL));
+            long start = System.nanoTime();
+            db.beginTransaction();
+            try {
+                for (ContentValues value : values) {
+                    value.put(WeatherEntry.COLUMN_DATE, WeatherContract.normalizeDate(
+                            value.getAsLong(WeatherEntry.COLUMN_DATE)));
+                    assertTrue(db.insert(WeatherEntry.TABLE_NAME, null, value) != -1);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            nanos += System.nanoTime() - start;
+        }
+        return nanos;
+    }
+
+    private int countWeatherRows() {
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{"COUNT(*)"}, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        int count = cursor.getInt(0);
+        cursor.close();
+        return count;
+    }
+
+    private ContentValues[] createWeatherValues(int call, int days) {
+        ContentValues[] values = new ContentValues[days];
+        for (int i = 0; i < days; i++) {
+            values[i] = TestUtilities.createWeatherValues(mLocationIds[call]);
+            values[i].put(WeatherEntry.COLUMN_DATE, TestUtilities.TEST_DATE + i * DAY_IN_MILLIS);
+            values[i].put(WeatherEntry.COLUMN_MIN_TEMP, 65.25 + i % 10);
+        }
+        return values;
+    }
+
+    private static long rowsPerSecond(int rows, long nanos) {
+        return rows * 1000000000L / Math.max(nanos, 1);
+    }
+}
@@ -18,14 +18,25 @@ package com.example.android.sunshine.app.data;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.os.Build;
 import android.test.AndroidTestCase;
+import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 public class TestDb extends AndroidTestCase {
 
     public static final String LOG_TAG = TestDb.class.getSimpleName();
 
+    // How long the benchmark's write transaction stays open, and how many rows it writes
+    private static final long INGEST_MILLIS = 600;
+    private static final int INGEST_ROWS = 30;
+
     // Since we want each test to start with a clean slate
     void deleteTheDatabase() {
         mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
@@ -55,6 +66,8 @@ public class TestDb extends AndroidTestCase {
         final HashSet<String> tableNameHashSet = new HashSet<String>();
         tableNameHashSet.add(WeatherContract.LocationEntry.TABLE_NAME);
         tableNameHashSet.add(WeatherContract.WeatherEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.SyncHistoryEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.IntradayEntry.TABLE_NAME);
 
         mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
         SQLiteDatabase db = new WeatherDbHelper(
@@ -91,6 +104,10 @@ public class TestDb extends AndroidTestCase {
         locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_COORD_LAT);
         locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_COORD_LONG);
         locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+        locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_CITY_ID);
+        locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_ETAG);
+        locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED);
+        locationColumnHashSet.add(WeatherContract.LocationEntry.COLUMN_LAST_USED);
 
         int columnNameIndex = c.getColumnIndex("name");
         do {
@@ -177,6 +194,163 @@ public class TestDb extends AndroidTestCase {
     }
 
 
+    public void testConnectionConfiguration() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return;
+        }
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+
+        Cursor c = db.rawQuery("PRAGMA journal_mode", null);
+        assertTrue(c.moveToFirst());
+        assertEquals("Error: The database should use write-ahead logging",
+                "wal", c.getString(0).toLowerCase());
+        c.close();
+
+        // Weather for a location that doesn't exist
+        ContentValues weatherValues = TestUtilities.createWeatherValues(12345);
+        assertEquals("Error: Foreign keys should be enforced",
+                -1, db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, weatherValues));
+        dbHelper.close();
+    }
+
+    /*
+        Holds a write transaction open for a while, the way a sync's commit does, and queries
+        from another thread meanwhile.  With write-ahead logging those reads have to complete
+        while the transaction is still open, without seeing its rows, and the rows have to all
+        be there once it commits.  The same ingest also runs in the rollback journal mode the
+        database used to have, and the latencies of both are logged so that runs can be
+        compared across changes; they aren't asserted on, since timings vary between devices.
+     */
+    public void testReadDuringIngest() throws Exception {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return;
+        }
+        IngestReads rollbackJournal = readDuringIngest(false);
+        deleteTheDatabase();
+        IngestReads writeAheadLog = readDuringIngest(true);
+
+        Log.d(LOG_TAG, "Reads during a " + INGEST_MILLIS + "ms ingest, rollback journal: " +
+                rollbackJournal.mLatencies.length + " reads, p50 " +
+                percentile(rollbackJournal.mLatencies, 50) + "ms, max " +
+                percentile(rollbackJournal.mLatencies, 100) + "ms; WAL: " +
+                writeAheadLog.mLatencies.length + " reads, p50 " +
+                percentile(writeAheadLog.mLatencies, 50) + "ms, max " +
+                percentile(writeAheadLog.mLatencies, 100) + "ms");
+
+        assertTrue("Error: No read completed while the writer held its transaction",
+                writeAheadLog.mReadsBeforeCommit > 0);
+        assertFalse("Error: A read saw rows the writer hadn't committed",
+                writeAheadLog.mSawUncommittedRows);
+        assertEquals(INGEST_ROWS, writeAheadLog.mRowsAfterCommit);
+        assertEquals(INGEST_ROWS, rollbackJournal.mRowsAfterCommit);
+    }
+
+    /*
+        What the reading thread saw of one ingest.
+     */
+    private static class IngestReads {
+        // The latency of each read, in milliseconds and sorted
+        long[] mLatencies;
+        // How many reads had completed by the time the writer committed
+        int mReadsBeforeCommit;
+        boolean mSawUncommittedRows;
+        int mRowsAfterCommit;
+    }
+
+    private IngestReads readDuringIngest(boolean writeAheadLogging) throws Exception {
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        dbHelper.setWriteAheadLoggingEnabled(writeAheadLogging);
+        final SQLiteDatabase db = dbHelper.getWritableDatabase();
+        long locationRowId = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null,
+                TestUtilities.createNorthPoleLocationValues());
+
+        final CountDownLatch ingestStarted = new CountDownLatch(1);
+        final boolean[] ingesting = new boolean[]{true};
+        // Guarded by ingesting as well
+        final boolean[] committing = new boolean[]{false};
+        final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+        final IngestReads reads = new IngestReads();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    ingestStarted.await();
+                    while (true) {
+                        synchronized (ingesting) {
+                            if (!ingesting[0]) {
+                                return;
+                            }
+                        }
+                        long start = System.nanoTime();
+                        Cursor c = db.rawQuery("SELECT COUNT(*) FROM " +
+                                WeatherContract.WeatherEntry.TABLE_NAME, null);
+                        c.moveToFirst();
+                        int rows = c.getInt(0);
+                        c.close();
+                        latencies.add((System.nanoTime() - start) / 1000000);
+                        synchronized (ingesting) {
+                            // Rows seen by a read that ended before the commit began can only
+                            // be uncommitted ones
+                            if (!committing[0] && rows > 0) {
+                                reads.mSawUncommittedRows = true;
+                            }
+                        }
+                        Thread.sleep(5);
+                    }
+                } catch (InterruptedException e) {
+                    // done
+                }
+            }
+        };
+        reader.start();
+
+        long dayInMillis = 1000 * 60 * 60 * 24;
+        db.beginTransaction();
+        try {
+            ingestStarted.countDown();
+            for (int i = 0; i < INGEST_ROWS; i++) {
+                ContentValues weatherValues = TestUtilities.createWeatherValues(locationRowId);
+                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                        TestUtilities.TEST_DATE + i * dayInMillis);
+                db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, weatherValues);
+                Thread.sleep(INGEST_MILLIS / INGEST_ROWS);
+            }
+            db.setTransactionSuccessful();
+            synchronized (ingesting) {
+                committing[0] = true;
+                reads.mReadsBeforeCommit = latencies.size();
+            }
+        } finally {
+            db.endTransaction();
+        }
+        synchronized (ingesting) {
+            ingesting[0] = false;
+        }
+        reader.join();
+
+        Cursor c = db.rawQuery("SELECT COUNT(*) FROM " +
+                WeatherContract.WeatherEntry.TABLE_NAME, null);
+        c.moveToFirst();
+        reads.mRowsAfterCommit = c.getInt(0);
+        c.close();
+        dbHelper.close();
+
+        reads.mLatencies = new long[latencies.size()];
+        for (int i = 0; i < reads.mLatencies.length; i++) {
+            reads.mLatencies[i] = latencies.get(i);
+        }
+        Arrays.sort(reads.mLatencies);
+        return reads;
+    }
+
+    private static long percentile(long[] sorted, int percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+    }
+
     /*
         Students: This is a helper method for the testWeatherTable quiz. You can move your
         code from testLocationTable to here so that you can call this code from both
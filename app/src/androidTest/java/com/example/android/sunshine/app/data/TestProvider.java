@@ -16,20 +16,28 @@
 package com.example.android.sunshine.app.data;
 
 import android.content.ComponentName;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Build;
 import android.test.AndroidTestCase;
 import android.util.Log;
 
+import com.example.android.sunshine.app.data.WeatherContract.IntradayEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncHistoryEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
+import java.util.ArrayList;
+
 /*
     Note: This is not a complete set of tests of the Sunshine ContentProvider, but it does test
     that at least the basic functionality has been implemented correctly.
@@ -56,11 +64,21 @@ public class TestProvider extends AndroidTestCase {
                 null,
                 null
         );
+        mContext.getContentResolver().delete(
+                IntradayEntry.CONTENT_URI,
+                null,
+                null
+        );
         mContext.getContentResolver().delete(
                 LocationEntry.CONTENT_URI,
                 null,
                 null
         );
+        mContext.getContentResolver().delete(
+                SyncHistoryEntry.CONTENT_URI,
+                null,
+                null
+        );
 
         Cursor cursor = mContext.getContentResolver().query(
                 WeatherEntry.CONTENT_URI,
@@ -160,6 +178,12 @@ public class TestProvider extends AndroidTestCase {
         // vnd.android.cursor.dir/com.example.android.sunshine.app/location
         assertEquals("Error: the LocationEntry CONTENT_URI should return LocationEntry.CONTENT_TYPE",
                 LocationEntry.CONTENT_TYPE, type);
+
+        // content://com.example.android.sunshine.app/intraday/94074/1419120000
+        type = mContext.getContentResolver().getType(
+                IntradayEntry.buildIntradayLocationWithDate(testLocation, testDate));
+        assertEquals("Error: the IntradayEntry CONTENT_URI with location and date should return IntradayEntry.CONTENT_TYPE",
+                IntradayEntry.CONTENT_TYPE, type);
     }
 
 
@@ -512,4 +536,288 @@ public class TestProvider extends AndroidTestCase {
         }
         cursor.close();
     }
+
+    /*
+        Applies a new location and its weather as one batch, with the weather rows pointing back
+        at the location insert, and checks that observers hear about it once it commits.
+     */
+    public void testApplyBatch() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(LocationEntry.CONTENT_URI)
+                .withValues(TestUtilities.createNorthPoleLocationValues())
+                .build());
+        ContentValues[] weatherValues = createBulkInsertWeatherValues(0);
+        for (ContentValues values : weatherValues) {
+            operations.add(ContentProviderOperation.newInsert(WeatherEntry.CONTENT_URI)
+                    .withValues(values)
+                    .withValueBackReference(WeatherEntry.COLUMN_LOC_KEY, 0)
+                    .build());
+        }
+
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true, weatherObserver);
+
+        ContentProviderResult[] results = mContext.getContentResolver().applyBatch(
+                WeatherContract.CONTENT_AUTHORITY, operations);
+
+        weatherObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+
+        assertEquals(operations.size(), results.length);
+        long locationRowId = ContentUris.parseId(results[0].uri);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.CONTENT_URI,
+                null,
+                WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(locationRowId)},
+                WeatherEntry.COLUMN_DATE + " ASC"
+        );
+        assertEquals("Error: Batch did not insert every weather row",
+                BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+        A batch that fails part way through must leave nothing behind, in the table or in the
+        location id cache.
+     */
+    public void testApplyBatchRollsBack() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(LocationEntry.CONTENT_URI)
+                .withValues(TestUtilities.createNorthPoleLocationValues())
+                .build());
+        // Missing every NOT NULL weather column, so this insert fails
+        operations.add(ContentProviderOperation.newInsert(WeatherEntry.CONTENT_URI)
+                .withValueBackReference(WeatherEntry.COLUMN_LOC_KEY, 0)
+                .build());
+
+        try {
+            mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+            fail("Error: Expected the batch to fail");
+        } catch (SQLException expected) {
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(
+                LocationEntry.CONTENT_URI, null, null, null, null);
+        assertEquals("Error: Failed batch left its location insert behind", 0, cursor.getCount());
+        cursor.close();
+        // The location was inserted before the weather failed, but never committed
+        assertEquals("Error: Failed batch left its location in the id cache",
+                LocationIdCache.MISSING, LocationIdCache.get(TestUtilities.TEST_LOCATION));
+    }
+
+    /*
+        Stores two days of 3-hour slots and reads one day back through the location and date
+        URI, checking that the slots come back in order and that the scaled values survive.
+        The first day has a slot more than usual, as a day that ends daylight saving does.
+     */
+    public void testIntradayQuery() {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        long firstDay = WeatherContract.normalizeDate(TestUtilities.TEST_DATE);
+        long dayInMillis = 1000 * 60 * 60 * 24;
+        long slotInMillis = 1000 * 60 * 60 * 3;
+        int firstDaySlots = IntradayEntry.SLOTS_PER_DAY + 1;
+
+        ContentValues[] slots = new ContentValues[firstDaySlots + IntradayEntry.SLOTS_PER_DAY];
+        for (int i = 0; i < slots.length; i++) {
+            // Later slots first, so the query has to do the ordering
+            long day = i < firstDaySlots ? firstDay : firstDay + dayInMillis;
+            int slot = i < firstDaySlots ? firstDaySlots - 1 - i : slots.length - 1 - i;
+            ContentValues values = new ContentValues();
+            values.put(IntradayEntry.COLUMN_LOC_KEY, locationRowId);
+            values.put(IntradayEntry.COLUMN_DATE, day);
+            values.put(IntradayEntry.COLUMN_SLOT_START, day + slot * slotInMillis);
+            values.put(IntradayEntry.COLUMN_WEATHER_ID, 800);
+            values.put(IntradayEntry.COLUMN_TEMP,
+                    IntradayEntry.toScaled(-12.34 + slot, IntradayEntry.TEMP_SCALE));
+            values.put(IntradayEntry.COLUMN_HUMIDITY, 80);
+            values.put(IntradayEntry.COLUMN_PRESSURE,
+                    IntradayEntry.toScaled(1013.2, IntradayEntry.PRESSURE_SCALE));
+            values.put(IntradayEntry.COLUMN_WIND_SPEED,
+                    IntradayEntry.toScaled(3.45, IntradayEntry.WIND_SPEED_SCALE));
+            values.put(IntradayEntry.COLUMN_DEGREES, 270);
+            slots[i] = values;
+        }
+        assertEquals(slots.length,
+                mContext.getContentResolver().bulkInsert(IntradayEntry.CONTENT_URI, slots));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                IntradayEntry.buildIntradayLocationWithDate(TestUtilities.TEST_LOCATION, firstDay),
+                null, null, null, null);
+        assertEquals("Error: Expected every slot of the first day", firstDaySlots,
+                cursor.getCount());
+        for (int slot = 0; cursor.moveToNext(); slot++) {
+            assertEquals(firstDay + slot * slotInMillis, cursor.getLong(
+                    cursor.getColumnIndex(IntradayEntry.COLUMN_SLOT_START)));
+            assertEquals(-12.34 + slot, IntradayEntry.fromScaled(
+                    cursor.getInt(cursor.getColumnIndex(IntradayEntry.COLUMN_TEMP)),
+                    IntradayEntry.TEMP_SCALE), 0.001);
+        }
+        cursor.close();
+    }
+
+    /*
+        A batch applied by a thread that has been interrupted, as a canceled sync's workers
+        are, must be rolled back and leave nothing behind.
+     */
+    public void testApplyBatchInterrupted() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(LocationEntry.CONTENT_URI)
+                .withValues(TestUtilities.createNorthPoleLocationValues())
+                .build());
+
+        Thread.currentThread().interrupt();
+        try {
+            mContext.getContentResolver().applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+            fail("Error: Expected the interrupted batch to fail");
+        } catch (OperationApplicationException expected) {
+        } finally {
+            // Don't leave the test runner's thread interrupted
+            Thread.interrupted();
+        }
+
+        Cursor cursor = mContext.getContentResolver().query(
+                LocationEntry.CONTENT_URI, null, null, null, null);
+        assertEquals("Error: Interrupted batch left its location insert behind", 0,
+                cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+        The sync adds locations through the insert-or-ignore route so that a location stored
+        between its lookup and its commit doesn't fail the batch.  Both inserts should give back
+        the one row, and the id cache should follow the row until it is deleted.
+     */
+    public void testInsertOrIgnoreLocation() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri first = mContext.getContentResolver().insert(
+                LocationEntry.buildLocationInsertOrIgnoreUri(), testValues);
+        Uri second = mContext.getContentResolver().insert(
+                LocationEntry.buildLocationInsertOrIgnoreUri(), testValues);
+
+        long locationRowId = ContentUris.parseId(first);
+        assertTrue(locationRowId != -1);
+        assertEquals("Error: A repeated insert should return the stored row",
+                locationRowId, ContentUris.parseId(second));
+
+        Cursor cursor = mContext.getContentResolver().query(
+                LocationEntry.CONTENT_URI, null, null, null, null);
+        assertEquals("Error: Expected a single location", 1, cursor.getCount());
+        cursor.close();
+
+        assertEquals(locationRowId, LocationIdCache.get(TestUtilities.TEST_LOCATION));
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        assertEquals("Error: Deleting locations should empty the id cache",
+                LocationIdCache.MISSING, LocationIdCache.get(TestUtilities.TEST_LOCATION));
+    }
+
+    /*
+        A write should only reach the loaders of the location it changed, and of the day if it
+        changed just the one.
+     */
+    public void testNotifiesChangedLocation() throws Exception {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ContentValues otherLocation = TestUtilities.createNorthPoleLocationValues();
+        otherLocation.put(LocationEntry.COLUMN_LOCATION_SETTING, "94043");
+        mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, otherLocation);
+        long day = WeatherContract.normalizeDate(TestUtilities.TEST_DATE);
+
+        TestUtilities.TestContentObserver locationObserver = TestUtilities.getTestContentObserver();
+        TestUtilities.TestContentObserver dayObserver = TestUtilities.getTestContentObserver();
+        TestUtilities.TestContentObserver nextDayObserver = TestUtilities.getTestContentObserver();
+        TestUtilities.TestContentObserver otherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION), true,
+                locationObserver);
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION, day), true,
+                dayObserver);
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION,
+                        day + 1000 * 60 * 60 * 24), true,
+                nextDayObserver);
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocation("94043"), true, otherObserver);
+
+        ContentValues weatherValues = TestUtilities.createWeatherValues(locationRowId);
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, weatherValues);
+
+        locationObserver.waitForNotificationOrFail();
+        dayObserver.waitForNotificationOrFail();
+        // Observers are told all at once, so a moment is enough for one that was going to hear
+        Thread.sleep(500);
+        assertFalse("Error: Another day of the location was notified",
+                nextDayObserver.mContentChanged);
+        assertFalse("Error: Another location was notified", otherObserver.mContentChanged);
+
+        // Several days at once notify the whole location
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+        nextDayObserver.waitForNotificationOrFail();
+        Thread.sleep(500);
+        assertFalse("Error: Another location was notified", otherObserver.mContentChanged);
+
+        mContext.getContentResolver().unregisterContentObserver(locationObserver);
+        mContext.getContentResolver().unregisterContentObserver(dayObserver);
+        mContext.getContentResolver().unregisterContentObserver(nextDayObserver);
+        mContext.getContentResolver().unregisterContentObserver(otherObserver);
+        otherObserver.mHT.quit();
+    }
+
+    private static ContentValues createSyncHistoryValues(int appVersion, String stage,
+                                                         long duration) {
+        ContentValues values = new ContentValues();
+        values.put(SyncHistoryEntry.COLUMN_SYNC_STARTED, TestUtilities.TEST_DATE);
+        values.put(SyncHistoryEntry.COLUMN_APP_VERSION, appVersion);
+        values.put(SyncHistoryEntry.COLUMN_LOCATION_SETTING, TestUtilities.TEST_LOCATION);
+        values.put(SyncHistoryEntry.COLUMN_STAGE, stage);
+        values.put(SyncHistoryEntry.COLUMN_DURATION, duration);
+        return values;
+    }
+
+    /*
+        Inserts parse timings of 1..100 and a handful of connect timings, and checks that the
+        stats URI reports the nearest-rank median and 95th percentile for each stage, and that
+        a selection narrows the history down (here to one app version).
+     */
+    public void testSyncHistoryStats() {
+        ArrayList<ContentValues> rows = new ArrayList<ContentValues>();
+        // Inserted out of order on purpose
+        for (int duration = 100; duration > 0; duration--) {
+            rows.add(createSyncHistoryValues(1, SyncHistoryEntry.STAGE_PARSE, duration));
+        }
+        rows.add(createSyncHistoryValues(1, SyncHistoryEntry.STAGE_CONNECT, 30));
+        rows.add(createSyncHistoryValues(1, SyncHistoryEntry.STAGE_CONNECT, 10));
+        rows.add(createSyncHistoryValues(1, SyncHistoryEntry.STAGE_CONNECT, 20));
+        rows.add(createSyncHistoryValues(2, SyncHistoryEntry.STAGE_CONNECT, 500));
+
+        int inserted = mContext.getContentResolver().bulkInsert(SyncHistoryEntry.CONTENT_URI,
+                rows.toArray(new ContentValues[rows.size()]));
+        assertEquals(rows.size(), inserted);
+
+        Cursor cursor = mContext.getContentResolver().query(SyncHistoryEntry.STATS_URI,
+                null,
+                SyncHistoryEntry.COLUMN_APP_VERSION + " = ?",
+                new String[]{"1"},
+                null);
+        assertEquals("Error: Expected one row per stage", 2, cursor.getCount());
+
+        // Stages come back in name order
+        assertTrue(cursor.moveToFirst());
+        assertEquals(SyncHistoryEntry.STAGE_CONNECT,
+                cursor.getString(cursor.getColumnIndex(SyncHistoryEntry.COLUMN_STAGE)));
+        assertEquals(3, cursor.getInt(cursor.getColumnIndex(SyncHistoryEntry.COLUMN_COUNT)));
+        assertEquals(20, cursor.getLong(cursor.getColumnIndex(SyncHistoryEntry.COLUMN_P50)));
+        assertEquals("Error: Other app versions should have been left out",
+                30, cursor.getLong(cursor.getColumnIndex(SyncHistoryEntry.COLUMN_P95)));
+
+        assertTrue(cursor.moveToNext());
+        assertEquals(SyncHistoryEntry.STAGE_PARSE,
+                cursor.getString(cursor.getColumnIndex(SyncHistoryEntry.COLUMN_STAGE)));
+        assertEquals(100, cursor.getInt(cursor.getColumnIndex(SyncHistoryEntry.COLUMN_COUNT)));
+        assertEquals(50, cursor.getLong(cursor.getColumnIndex(SyncHistoryEntry.COLUMN_P50)));
+        assertEquals(95, cursor.getLong(cursor.getColumnIndex(SyncHistoryEntry.COLUMN_P95)));
+        cursor.close();
+    }
 }
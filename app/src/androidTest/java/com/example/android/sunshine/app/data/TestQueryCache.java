@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/*
+    Checks that repeated weather queries are answered from the provider's cache, and that a
+    write drops the cached results it affects and only those.
+ */
+public class TestQueryCache extends AndroidTestCase {
+
+    private static final String OTHER_LOCATION = "94043";
+
+    private static final String[] FORECAST_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            LocationEntry.COLUMN_COORD_LAT
+    };
+
+    private Uri mForecastUri;
+    private long mLocationRowId;
+    private long mOtherLocationRowId;
+    private int mDays;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(
+                WeatherContract.IntradayEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+
+        mLocationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, TestUtilities.createNorthPoleLocationValues()));
+        ContentValues otherLocation = TestUtilities.createNorthPoleLocationValues();
+        otherLocation.put(LocationEntry.COLUMN_LOCATION_SETTING, OTHER_LOCATION);
+        mOtherLocationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, otherLocation));
+        ContentValues[] weatherValues = TestProvider.createBulkInsertWeatherValues(mLocationRowId);
+        mDays = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, weatherValues);
+
+        mForecastUri = WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION);
+    }
+
+    public void testRepeatedQueryHits() {
+        long hits = getStats().getLong(WeatherEntry.KEY_CACHE_HITS);
+        long misses = getStats().getLong(WeatherEntry.KEY_CACHE_MISSES);
+
+        Cursor first = queryForecast();
+        Cursor second = queryForecast();
+        Cursor third = queryForecast();
+
+        Bundle stats = getStats();
+        assertEquals("Error: Only the first query should have gone to the database",
+                misses + 1, stats.getLong(WeatherEntry.KEY_CACHE_MISSES));
+        assertEquals(hits + 2, stats.getLong(WeatherEntry.KEY_CACHE_HITS));
+
+        // Each hit has its own position over the same rows
+        assertEquals(mDays, second.getCount());
+        assertTrue(third.moveToLast());
+        while (first.moveToNext()) {
+            assertTrue(second.moveToNext());
+            for (int column = 0; column < first.getColumnCount(); column++) {
+                assertEquals("Error: A hit should read like the query it was cached from",
+                        first.getString(column), second.getString(column));
+                assertEquals(first.getType(column), second.getType(column));
+            }
+        }
+        assertTrue(third.isLast());
+        assertEquals(first.getColumnIndex(WeatherEntry.COLUMN_SHORT_DESC),
+                second.getColumnIndex(WeatherEntry.COLUMN_SHORT_DESC));
+        first.close();
+        second.close();
+        third.close();
+    }
+
+    /*
+        A write to another location leaves the cached forecast alone.  A write to this one
+        drops it, so the next query sees the write.
+     */
+    public void testWritesInvalidate() {
+        queryForecast().close();
+
+        ContentValues otherWeather = TestUtilities.createWeatherValues(mOtherLocationRowId);
+        mContext.getContentResolver().insert(WeatherEntry.CONTENT_URI, otherWeather);
+        long misses = getStats().getLong(WeatherEntry.KEY_CACHE_MISSES);
+        queryForecast().close();
+        assertEquals("Error: Another location's write dropped the cached forecast",
+                misses, getStats().getLong(WeatherEntry.KEY_CACHE_MISSES));
+
+        ContentValues update = new ContentValues();
+        update.put(WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+        mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, update,
+                WeatherEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(mLocationRowId)});
+
+        Cursor cursor = queryForecast();
+        assertEquals("Error: The update should have dropped the cached forecast",
+                misses + 1, getStats().getLong(WeatherEntry.KEY_CACHE_MISSES));
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Meteors",
+                cursor.getString(cursor.getColumnIndex(WeatherEntry.COLUMN_SHORT_DESC)));
+        cursor.close();
+
+        // The forecast carries columns of its location
+        ContentValues moved = new ContentValues();
+        moved.put(LocationEntry.COLUMN_COORD_LAT, 10.5);
+        mContext.getContentResolver().update(LocationEntry.CONTENT_URI, moved,
+                LocationEntry._ID + " = ?", new String[]{Long.toString(mLocationRowId)});
+
+        cursor = queryForecast();
+        assertTrue(cursor.moveToFirst());
+        assertEquals(10.5,
+                cursor.getDouble(cursor.getColumnIndex(LocationEntry.COLUMN_COORD_LAT)));
+        cursor.close();
+    }
+
+    private Cursor queryForecast() {
+        return mContext.getContentResolver().query(mForecastUri, FORECAST_COLUMNS, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+    }
+
+    private Bundle getStats() {
+        return mContext.getContentResolver().call(WeatherEntry.CONTENT_URI,
+                WeatherEntry.METHOD_QUERY_CACHE_STATS, null, null);
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract.IntradayEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncHistoryEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+    Asks SQLite how it would run the query behind each provider route, with the selections and
+    sort orders the app actually sends, and fails if one of them would walk a whole table or
+    sort its results in a temporary B-tree.  Those only show up as slowness once a user has a
+    few locations and weeks of history, so they are caught here instead.
+ */
+public class TestQueryPlans extends AndroidTestCase {
+
+    private static final String DATE_ASC = WeatherEntry.COLUMN_DATE + " ASC";
+
+    private WeatherDbHelper mDbHelper;
+    private SQLiteDatabase mDb;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+        mDbHelper = new WeatherDbHelper(mContext);
+        mDb = mDbHelper.getReadableDatabase();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDbHelper.close();
+        super.tearDown();
+    }
+
+    /*
+        The forecast list, widgets, watch face and Muzei all read a location's days in order.
+     */
+    public void testWeatherWithLocation() {
+        String tables = WeatherProvider.sWeatherByLocationSettingQueryBuilder.getTables();
+
+        assertSearches("weather/*", build(tables,
+                WeatherProvider.sLocationSettingSelection, DATE_ASC),
+                WeatherDbHelper.INDEX_WEATHER_LOCATION_DATE);
+        assertSearches("weather/*?date=", build(tables,
+                WeatherProvider.sLocationSettingWithStartDateSelection, DATE_ASC),
+                WeatherDbHelper.INDEX_WEATHER_LOCATION_DATE);
+    }
+
+    public void testWeatherWithLocationAndDate() {
+        assertSearches("weather/*/#", build(
+                WeatherProvider.sWeatherByLocationSettingQueryBuilder.getTables(),
+                WeatherProvider.sLocationSettingAndDaySelection, null),
+                null);
+    }
+
+    /*
+        What the sync reads to work out which of the incoming days changed.
+     */
+    public void testWeather() {
+        assertSearches("weather", build(WeatherEntry.TABLE_NAME,
+                WeatherEntry.COLUMN_LOC_KEY + " = ? AND " + WeatherEntry.COLUMN_DATE + " >= ?",
+                DATE_ASC),
+                WeatherDbHelper.INDEX_WEATHER_LOCATION_DATE);
+    }
+
+    public void testLocation() {
+        assertSearches("location", build(LocationEntry.TABLE_NAME,
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?", null),
+                null);
+        // Every location, so the best there is is walking them in the order asked for
+        assertScansInOrder("location by last use", build(LocationEntry.TABLE_NAME,
+                null, LocationEntry.COLUMN_LAST_USED + " DESC"),
+                WeatherDbHelper.INDEX_LOCATION_LAST_USED);
+    }
+
+    public void testSyncHistory() {
+        // The selection the sync trims old history with
+        assertSearches("sync_history", build(SyncHistoryEntry.TABLE_NAME,
+                SyncHistoryEntry.COLUMN_SYNC_STARTED + " < ?", null),
+                WeatherDbHelper.INDEX_SYNC_HISTORY_STARTED);
+        assertScansInOrder("sync_history/stats", SQLiteQueryBuilder.buildQueryString(false,
+                SyncHistoryEntry.TABLE_NAME, WeatherProvider.sStageDurationProjection, null,
+                null, null, WeatherProvider.sStageDurationSortOrder, null),
+                WeatherDbHelper.INDEX_SYNC_HISTORY_STAGE_DURATION);
+    }
+
+    public void testIntraday() {
+        assertSearches("intraday", build(IntradayEntry.TABLE_NAME,
+                IntradayEntry.COLUMN_LOC_KEY + " = ? AND " + IntradayEntry.COLUMN_DATE + " = ?",
+                IntradayEntry.COLUMN_SLOT_START),
+                null);
+        assertSearches("intraday/*/#", build(
+                WeatherProvider.sIntradayByLocationSettingQueryBuilder.getTables(),
+                WeatherProvider.sLocationSettingAndDaySelection, IntradayEntry.COLUMN_SLOT_START),
+                null);
+    }
+
+    private static String build(String tables, String selection, String sortOrder) {
+        return SQLiteQueryBuilder.buildQueryString(false, tables, null, selection, null, null,
+                sortOrder, null);
+    }
+
+    /*
+        Every table the query reads has to be looked up through an index.
+     */
+    private void assertSearches(String route, String sql, String index) {
+        List<String> plan = explain(sql);
+        for (String step : plan) {
+            assertFalse("Error: " + route + " scans a table: " + plan, step.startsWith("SCAN"));
+        }
+        assertPlan(route, plan, index);
+    }
+
+    /*
+        For a query that reads a whole table, the table has to be walked through an index that
+        already has the rows in the order asked for.
+     */
+    private void assertScansInOrder(String route, String sql, String index) {
+        List<String> plan = explain(sql);
+        for (String step : plan) {
+            assertFalse("Error: " + route + " scans a table without an index: " + plan,
+                    step.startsWith("SCAN") && !step.contains(" USING "));
+        }
+        assertPlan(route, plan, index);
+    }
+
+    private static void assertPlan(String route, List<String> plan, String index) {
+        boolean usesIndex = index == null;
+        for (String step : plan) {
+            assertFalse("Error: " + route + " sorts in a temporary B-tree: " + plan,
+                    step.contains("TEMP B-TREE"));
+            usesIndex |= step.contains(" " + index + " ") || step.endsWith(" " + index);
+        }
+        assertTrue("Error: " + route + " doesn't use " + index + ": " + plan, usesIndex);
+    }
+
+    private List<String> explain(String sql) {
+        // The plan doesn't depend on the values, only on there being one for each parameter
+        String[] args = new String[countParameters(sql)];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = "1";
+        }
+        Cursor cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        List<String> plan = new ArrayList<String>();
+        try {
+            int detailColumn = cursor.getColumnIndexOrThrow("detail");
+            while (cursor.moveToNext()) {
+                plan.add(cursor.getString(detailColumn));
+            }
+        } finally {
+            cursor.close();
+        }
+        assertFalse("Error: No plan for " + sql, plan.isEmpty());
+        return plan;
+    }
+
+    private static int countParameters(String sql) {
+        int count = 0;
+        for (int i = 0; i < sql.length(); i++) {
+            if (sql.charAt(i) == '?') {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -36,6 +36,12 @@ public class TestUriMatcher extends AndroidTestCase {
     private static final Uri TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(LOCATION_QUERY, TEST_DATE);
     // content://com.example.android.sunshine.app/location"
     private static final Uri TEST_LOCATION_DIR = WeatherContract.LocationEntry.CONTENT_URI;
+    // content://com.example.android.sunshine.app/sync_history"
+    private static final Uri TEST_SYNC_HISTORY_DIR = WeatherContract.SyncHistoryEntry.CONTENT_URI;
+    private static final Uri TEST_SYNC_HISTORY_STATS_DIR = WeatherContract.SyncHistoryEntry.STATS_URI;
+    // content://com.example.android.sunshine.app/intraday"
+    private static final Uri TEST_INTRADAY_DIR = WeatherContract.IntradayEntry.CONTENT_URI;
+    private static final Uri TEST_INTRADAY_WITH_LOCATION_AND_DATE_DIR = WeatherContract.IntradayEntry.buildIntradayLocationWithDate(LOCATION_QUERY, TEST_DATE);
 
     /*
         Students: This function tests that your UriMatcher returns the correct integer value
@@ -53,5 +59,13 @@ public class TestUriMatcher extends AndroidTestCase {
                 testMatcher.match(TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR), WeatherProvider.WEATHER_WITH_LOCATION_AND_DATE);
         assertEquals("Error: The LOCATION URI was matched incorrectly.",
                 testMatcher.match(TEST_LOCATION_DIR), WeatherProvider.LOCATION);
+        assertEquals("Error: The SYNC HISTORY URI was matched incorrectly.",
+                testMatcher.match(TEST_SYNC_HISTORY_DIR), WeatherProvider.SYNC_HISTORY);
+        assertEquals("Error: The SYNC HISTORY STATS URI was matched incorrectly.",
+                testMatcher.match(TEST_SYNC_HISTORY_STATS_DIR), WeatherProvider.SYNC_HISTORY_STATS);
+        assertEquals("Error: The INTRADAY URI was matched incorrectly.",
+                testMatcher.match(TEST_INTRADAY_DIR), WeatherProvider.INTRADAY);
+        assertEquals("Error: The INTRADAY WITH LOCATION AND DATE URI was matched incorrectly.",
+                testMatcher.match(TEST_INTRADAY_WITH_LOCATION_AND_DATE_DIR), WeatherProvider.INTRADAY_WITH_LOCATION_AND_DATE);
     }
 }
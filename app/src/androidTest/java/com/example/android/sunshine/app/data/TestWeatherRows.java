@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.ArrayList;
+
+/*
+    Checks that forecast rows sent as a WeatherRows batch land like ContentValues would, and
+    measures what each way allocates for a two-week forecast.  The counts are only logged, for
+    comparing runs across changes: what the allocation counter sees differs between runtimes.
+ */
+public class TestWeatherRows extends AndroidTestCase {
+    private static final String LOG_TAG = TestWeatherRows.class.getSimpleName();
+
+    private static final int DAYS = 14;
+    private static final int BENCHMARK_BATCHES = 20;
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+
+    private long mFirstDay;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mFirstDay = WeatherContract.normalizeDate(TestUtilities.TEST_DATE);
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(
+                WeatherContract.IntradayEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    private void fill(WeatherRows rows, int batch) {
+        for (int i = 0; i < DAYS; i++) {
+            rows.add(mFirstDay + i * DAY_IN_MILLIS, 800 + i, "Asteroids", 65.25 + batch,
+                    75.5 + i, 80.0 + i, 1013.2, 5.5, 270.0);
+        }
+    }
+
+    private ContentValues[] toContentValues(long locationRowId, int batch) {
+        ContentValues[] values = new ContentValues[DAYS];
+        for (int i = 0; i < DAYS; i++) {
+            ContentValues weatherValues = new ContentValues();
+            weatherValues.put(WeatherEntry.COLUMN_LOC_KEY, locationRowId);
+            weatherValues.put(WeatherEntry.COLUMN_DATE, mFirstDay + i * DAY_IN_MILLIS);
+            weatherValues.put(WeatherEntry.COLUMN_WEATHER_ID, 800 + i);
+            weatherValues.put(WeatherEntry.COLUMN_SHORT_DESC, "Asteroids");
+            weatherValues.put(WeatherEntry.COLUMN_MIN_TEMP, 65.25 + batch);
+            weatherValues.put(WeatherEntry.COLUMN_MAX_TEMP, 75.5 + i);
+            weatherValues.put(WeatherEntry.COLUMN_HUMIDITY, 80.0 + i);
+            weatherValues.put(WeatherEntry.COLUMN_PRESSURE, 1013.2);
+            weatherValues.put(WeatherEntry.COLUMN_WIND_SPEED, 5.5);
+            weatherValues.put(WeatherEntry.COLUMN_DEGREES, 270.0);
+            values[i] = weatherValues;
+        }
+        return values;
+    }
+
+    public void testApplyRows() throws Exception {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        WeatherRows rows = new WeatherRows(1);
+        rows.setLocationId(locationRowId);
+        fill(rows, 0);
+        assertEquals("Error: The buffer should have grown to fit every day", DAYS, rows.size());
+
+        rows.applyWith(mContext.getContentResolver(), new ArrayList<ContentProviderOperation>());
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null,
+                null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals("Error: Expected a row per day", DAYS, cursor.getCount());
+        ContentValues[] expected = toContentValues(locationRowId, 0);
+        for (int i = 0; cursor.moveToNext(); i++) {
+            TestUtilities.validateCurrentRecord("Error: Row " + i + " didn't round trip",
+                    cursor, expected[i]);
+        }
+        cursor.close();
+    }
+
+    /*
+        A location new to the batch is inserted by its first operation, and the rows take its
+        id from there, as the sync does for a location it hasn't stored yet.
+     */
+    public void testLocationBackReference() throws Exception {
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(LocationEntry.CONTENT_URI)
+                .withValues(TestUtilities.createNorthPoleLocationValues())
+                .build());
+        WeatherRows rows = new WeatherRows(DAYS);
+        rows.setLocationBackReference(0);
+        fill(rows, 0);
+
+        long locationRowId = ContentUris.parseId(
+                rows.applyWith(mContext.getContentResolver(), operations)[0].uri);
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI,
+                new String[]{WeatherEntry.COLUMN_LOC_KEY}, null, null, null);
+        assertEquals(DAYS, cursor.getCount());
+        while (cursor.moveToNext()) {
+            assertEquals(locationRowId, cursor.getLong(0));
+        }
+        cursor.close();
+    }
+
+    /*
+        Builds and stores the same forecast again and again both ways.  Building the batch is
+        what the sync does per location before it commits, which is where reusing a WeatherRows
+        saves the most.  Only the stored rows are checked.
+     */
+    public void testIngestAllocations() throws Exception {
+        long locationRowId = TestUtilities.insertNorthPoleLocationValues(mContext);
+        ArrayList<ContentProviderOperation> noOperations =
+                new ArrayList<ContentProviderOperation>();
+        WeatherRows rows = new WeatherRows(DAYS);
+
+        // Warm up both paths so that class loading and statement caches aren't counted
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                toContentValues(locationRowId, 0));
+        fill(rows, 0);
+        rows.setLocationId(locationRowId);
+        rows.applyWith(mContext.getContentResolver(), noOperations);
+
+        long valuesBuild = 0;
+        long valuesTotal = 0;
+        long valuesNanos = 0;
+        for (int batch = 0; batch < BENCHMARK_BATCHES; batch++) {
+            long start = System.nanoTime();
+            startAllocCounting();
+            ContentValues[] values = toContentValues(locationRowId, batch);
+            valuesBuild += getAllocCount();
+            mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, values);
+            valuesTotal += stopAllocCounting();
+            valuesNanos += System.nanoTime() - start;
+        }
+
+        long rowsBuild = 0;
+        long rowsTotal = 0;
+        long rowsNanos = 0;
+        for (int batch = 0; batch < BENCHMARK_BATCHES; batch++) {
+            long start = System.nanoTime();
+            startAllocCounting();
+            rows.clear();
+            rows.setLocationId(locationRowId);
+            fill(rows, batch);
+            rowsBuild += getAllocCount();
+            rows.applyWith(mContext.getContentResolver(), noOperations);
+            rowsTotal += stopAllocCounting();
+            rowsNanos += System.nanoTime() - start;
+        }
+
+        Log.d(LOG_TAG, "Per " + DAYS + "-day batch, ContentValues: " +
+                valuesBuild / BENCHMARK_BATCHES + " objects to build, " +
+                valuesTotal / BENCHMARK_BATCHES + " in all, " +
+                valuesNanos / BENCHMARK_BATCHES / 1000 + "us; WeatherRows: " +
+                rowsBuild / BENCHMARK_BATCHES + " objects to build, " +
+                rowsTotal / BENCHMARK_BATCHES + " in all, " +
+                rowsNanos / BENCHMARK_BATCHES / 1000 + "us");
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null,
+                null, null, null);
+        assertEquals("Error: Each batch should replace the one before", DAYS, cursor.getCount());
+        cursor.close();
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void startAllocCounting() {
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+    }
+
+    @SuppressWarnings("deprecation")
+    private static int getAllocCount() {
+        return Debug.getThreadAllocCount();
+    }
+
+    @SuppressWarnings("deprecation")
+    private static int stopAllocCounting() {
+        Debug.stopAllocCounting();
+        return Debug.getThreadAllocCount();
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.net.Uri;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    A stand-in for the OWM daily and 3-hour forecast APIs on the loopback interface.  It serves
+    recorded forecasts by location or city id, and can be made slow, narrow or flaky so that
+    syncs can be timed and regression-tested without a network.  Locations it has no fixture for
+    get the same in-body 404 the real server sends.
+ */
+public class FakeOwmServer extends StubHttpServer {
+
+    public static final String API_PATH = "/data/2.5";
+    private static final String DAILY_PATH = API_PATH + "/forecast/daily";
+
+    private static final String QUERY_PARAM = "q";
+    private static final String CITY_ID_PARAM = "id";
+    private static final String NOT_FOUND =
+            "{\"cod\":\"404\",\"message\":\"Error: Not found city\"}";
+
+    // Keyed by "q=<location setting>" and "id=<city id>"
+    private final Map<String, String> mFixtures = new HashMap<String, String>();
+    private final Map<String, String> mIntradayFixtures = new HashMap<String, String>();
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicLong mBytesSent = new AtomicLong();
+    private volatile long mLatencyMillis;
+    private volatile int mBytesPerSecond;
+    private volatile int mErrorEvery;
+    private volatile int mErrorStatus;
+
+    /*
+        Stands in for a connection that drops halfway through the body.
+     */
+    private static class TruncatedResponse extends Response {
+    }
+
+    public void addFixture(String locationSetting, long cityId, String json) {
+        addFixture(mFixtures, locationSetting, cityId, json);
+    }
+
+    public void addIntradayFixture(String locationSetting, long cityId, String json) {
+        addFixture(mIntradayFixtures, locationSetting, cityId, json);
+    }
+
+    private static void addFixture(Map<String, String> fixtures, String locationSetting,
+                                   long cityId, String json) {
+        synchronized (fixtures) {
+            fixtures.put(QUERY_PARAM + "=" + locationSetting, json);
+            fixtures.put(CITY_ID_PARAM + "=" + cityId, json);
+        }
+    }
+
+    // Delay before the status line of every response, like a distant server
+    public void setLatencyMillis(long latencyMillis) {
+        mLatencyMillis = latencyMillis;
+    }
+
+    // Caps how fast responses are written, or 0 for as fast as the loopback goes
+    public void setBandwidth(int bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    // Fails every nth request with the status, or with a dropped connection if the status is 0
+    public void setErrorEvery(int n, int status) {
+        mErrorEvery = n;
+        mErrorStatus = status;
+    }
+
+    public long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    // What to hand OwmWeatherSource in place of its API_BASE_URL
+    public String getApiUrl() {
+        return getUrl(API_PATH);
+    }
+
+    @Override
+    protected Response dispatch(Request request) throws IOException {
+        int count = mRequestCount.incrementAndGet();
+        sleep(mLatencyMillis);
+
+        boolean fail = mErrorEvery > 0 && count % mErrorEvery == 0;
+        if (fail && mErrorStatus != 0) {
+            return Response.status(mErrorStatus);
+        }
+
+        Uri uri = Uri.parse(request.path);
+        String key = uri.getQueryParameter(CITY_ID_PARAM) != null
+                ? CITY_ID_PARAM + "=" + uri.getQueryParameter(CITY_ID_PARAM)
+                : QUERY_PARAM + "=" + uri.getQueryParameter(QUERY_PARAM);
+        Map<String, String> fixtures = request.path.startsWith(DAILY_PATH)
+                ? mFixtures : mIntradayFixtures;
+        String json;
+        synchronized (fixtures) {
+            json = fixtures.get(key);
+        }
+        if (json == null) {
+            json = NOT_FOUND;
+        }
+
+        String acceptEncoding = request.headers.get("accept-encoding");
+        Response response = acceptEncoding != null && acceptEncoding.contains("gzip")
+                ? Response.gzip(json) : Response.json(json);
+        if (fail) {
+            // The real response, cut short
+            Response truncated = new TruncatedResponse();
+            truncated.headers.putAll(response.headers);
+            truncated.body = response.body;
+            return truncated;
+        }
+        return response;
+    }
+
+    @Override
+    protected void writeResponse(OutputStream out, Response response) throws IOException {
+        OutputStream counting = new MeteredOutputStream(out,
+                response instanceof TruncatedResponse ? response.body.length / 2 : -1);
+        super.writeResponse(counting, response);
+    }
+
+    private static void sleep(long millis) throws IOException {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /*
+        Counts what is sent, holds it to the bandwidth, and drops the connection after cutOff
+        bytes of the body if cutOff isn't -1.
+     */
+    private class MeteredOutputStream extends FilterOutputStream {
+        private static final int CHUNK = 1024;
+
+        private final int mCutOff;
+        private boolean mInBody;
+        private int mBodyBytes;
+
+        MeteredOutputStream(OutputStream out, int cutOff) {
+            super(out);
+            mCutOff = cutOff;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int count) throws IOException {
+            // StubHttpServer writes the head and then the body, in one call each
+            if (mInBody && mCutOff >= 0 && mBodyBytes + count > mCutOff) {
+                out.write(buffer, offset, mCutOff - mBodyBytes);
+                out.flush();
+                throw new IOException("Dropped connection");
+            }
+            for (int written = 0; written < count; written += CHUNK) {
+                int chunk = Math.min(CHUNK, count - written);
+                out.write(buffer, offset + written, chunk);
+                mBytesSent.addAndGet(chunk);
+                int bytesPerSecond = mBytesPerSecond;
+                if (bytesPerSecond > 0) {
+                    out.flush();
+                    sleep(chunk * 1000L / bytesPerSecond);
+                }
+            }
+            if (mInBody) {
+                mBodyBytes += count;
+            }
+            mInBody = true;
+        }
+    }
+
+    /**
+     * Generates an OWM daily forecast in the shape the real server sends, with "list" ahead of
+     * "city".  The same arguments always give the same forecast.
+     */
+    public static String forecastJson(long cityId, String cityName, int days) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"cod\":\"200\",\"message\":0.0032,\"cnt\":").append(days)
+                .append(",\"list\":[");
+        long dt = 1419076800L;
+        for (int i = 0; i < days; i++) {
+            double min = 10 + (cityId + i) % 7;
+            double max = min + 4 + i % 3;
+            int weatherId = i % 2 == 0 ? 800 : 500;
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(String.format(Locale.US,
+                    "{\"dt\":%d,\"temp\":{\"day\":%.2f,\"min\":%.2f,\"max\":%.2f," +
+                            "\"night\":%.2f,\"eve\":%.2f,\"morn\":%.2f}," +
+                            "\"pressure\":%.2f,\"humidity\":%d,\"weather\":[{\"id\":%d," +
+                            "\"main\":\"%s\",\"description\":\"%s\",\"icon\":\"%s\"}]," +
+                            "\"speed\":%.2f,\"deg\":%d,\"clouds\":%d}",
+                    dt + i * 86400L, max - 1, min, max, min + 1, max - 2, min + 2,
+                    1010 + i * 0.75, 60 + i % 30, weatherId,
+                    weatherId == 800 ? "Clear" : "Rain",
+                    weatherId == 800 ? "sky is clear" : "light rain",
+                    weatherId == 800 ? "01d" : "10d",
+                    1.5 + i * 0.1, (i * 37) % 360, (i * 13) % 100));
+        }
+        json.append("],\"city\":{\"id\":").append(cityId)
+                .append(",\"name\":\"").append(cityName)
+                .append("\",\"coord\":{\"lon\":-122.0838,\"lat\":37.3861}," +
+                        "\"country\":\"US\",\"population\":0}}");
+        return json.toString();
+    }
+
+    /**
+     * Generates an OWM 3-hour forecast in the shape the real server sends, starting at midnight
+     * UTC.  The same arguments always give the same forecast.
+     */
+    public static String intradayJson(long cityId, String cityName, int slots) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"cod\":\"200\",\"message\":0.0036,\"cnt\":").append(slots)
+                .append(",\"list\":[");
+        long dt = 1419033600L;
+        for (int i = 0; i < slots; i++) {
+            double temp = 8 + (cityId + i) % 9 + 0.25;
+            int weatherId = i % 4 == 0 ? 500 : 800;
+            if (i > 0) {
+                json.append(',');
+            }
+            json.append(String.format(Locale.US,
+                    "{\"dt\":%d,\"main\":{\"temp\":%.2f,\"temp_min\":%.2f," +
+                            "\"temp_max\":%.2f,\"pressure\":%.2f,\"sea_level\":%.2f," +
+                            "\"humidity\":%d,\"temp_kf\":0}," +
+                            "\"weather\":[{\"id\":%d,\"main\":\"%s\",\"icon\":\"%s\"}]," +
+                            "\"clouds\":{\"all\":%d},\"wind\":{\"speed\":%.2f,\"deg\":%.1f}," +
+                            "\"dt_txt\":\"ignored\"}",
+                    dt + i * 10800L, temp, temp - 1, temp + 1, 1012.35 + i * 0.1, 1030.0,
+                    55 + i % 40, weatherId, weatherId == 800 ? "Clear" : "Rain",
+                    weatherId == 800 ? "01d" : "10d", (i * 11) % 100, 2.5 + i * 0.05,
+                    (i * 23.5) % 360));
+        }
+        json.append("],\"city\":{\"id\":").append(cityId)
+                .append(",\"name\":\"").append(cityName)
+                .append("\",\"coord\":{\"lon\":-122.0838,\"lat\":37.3861}," +
+                        "\"country\":\"US\"}}");
+        return json.toString();
+    }
+}
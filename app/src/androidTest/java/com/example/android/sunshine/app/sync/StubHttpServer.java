@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/*
+    A tiny HTTP/1.1 server bound to the loopback interface, so that the sync code can be tested
+    against canned responses without touching the network.  By default every connection serves
+    a single request and is then closed; with keep-alive on, a connection serves requests until
+    the client closes it.
+ */
+public class StubHttpServer {
+
+    public static class Request {
+        public final String method;
+        public final String path;
+        // Header names are lower-cased
+        public final Map<String, String> headers;
+
+        Request(String method, String path, Map<String, String> headers) {
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+        }
+    }
+
+    public static class Response {
+        public int status = 200;
+        public final Map<String, String> headers = new LinkedHashMap<String, String>();
+        public byte[] body = new byte[0];
+
+        public static Response json(String json) {
+            Response response = new Response();
+            response.headers.put("Content-Type", "application/json; charset=utf-8");
+            response.body = utf8(json);
+            return response;
+        }
+
+        public static Response gzip(String json) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            GZIPOutputStream out = new GZIPOutputStream(bytes);
+            out.write(utf8(json));
+            out.close();
+            Response response = json(json);
+            response.headers.put("Content-Encoding", "gzip");
+            response.body = bytes.toByteArray();
+            return response;
+        }
+
+        public static Response deflate(String json, boolean zlibWrapped) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DeflaterOutputStream out = new DeflaterOutputStream(bytes,
+                    new Deflater(Deflater.DEFAULT_COMPRESSION, !zlibWrapped));
+            out.write(utf8(json));
+            out.close();
+            Response response = json(json);
+            response.headers.put("Content-Encoding", "deflate");
+            response.body = bytes.toByteArray();
+            return response;
+        }
+
+        public static Response status(int status) {
+            Response response = new Response();
+            response.status = status;
+            return response;
+        }
+
+        static byte[] utf8(String s) {
+            try {
+                return s.getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+    public interface Dispatcher {
+        Response dispatch(Request request) throws IOException;
+    }
+
+    private final Dispatcher mDispatcher;
+    private final List<Request> mRequests = Collections.synchronizedList(new ArrayList<Request>());
+    private final AtomicInteger mConnectionCount = new AtomicInteger();
+    private volatile boolean mKeepAlive;
+    private ServerSocket mServerSocket;
+    private Thread mAcceptThread;
+
+    public StubHttpServer(Dispatcher dispatcher) {
+        mDispatcher = dispatcher;
+    }
+
+    // For subclasses that override dispatch
+    protected StubHttpServer() {
+        this(null);
+    }
+
+    public void start() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mAcceptThread = new Thread("StubHttpServer") {
+            @Override
+            public void run() {
+                while (!mServerSocket.isClosed()) {
+                    try {
+                        final Socket socket = mServerSocket.accept();
+                        mConnectionCount.incrementAndGet();
+                        new Thread("StubHttpServer connection") {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        }.start();
+                    } catch (IOException e) {
+                        // Closed by shutdown()
+                    }
+                }
+            }
+        };
+        mAcceptThread.start();
+    }
+
+    public void setKeepAlive(boolean keepAlive) {
+        mKeepAlive = keepAlive;
+    }
+
+    public int getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+    public String getUrl(String path) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+    public List<Request> getRequests() {
+        synchronized (mRequests) {
+            return new ArrayList<Request>(mRequests);
+        }
+    }
+
+    public void shutdown() throws IOException {
+        mServerSocket.close();
+    }
+
+    private void serve(Socket socket) {
+        try {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+            do {
+                // We only ever get GETs, so there is no request body to skip over
+                String requestLine = in.readLine();
+                if (requestLine == null) {
+                    return;
+                }
+                String[] parts = requestLine.split(" ");
+                Map<String, String> headers = new HashMap<String, String>();
+                String line;
+                while ((line = in.readLine()) != null && line.length() > 0) {
+                    int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        headers.put(line.substring(0, colon).trim().toLowerCase(),
+                                line.substring(colon + 1).trim());
+                    }
+                }
+                Request request = new Request(parts[0], parts.length > 1 ? parts[1] : "/", headers);
+                mRequests.add(request);
+
+                Response response = dispatch(request);
+                writeResponse(socket.getOutputStream(), response);
+            } while (mKeepAlive);
+        } catch (IOException e) {
+            // The client went away; nothing to do.
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+
+    protected Response dispatch(Request request) throws IOException {
+        return mDispatcher.dispatch(request);
+    }
+
+    protected void writeResponse(OutputStream out, Response response) throws IOException {
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(response.status).append(" Stub\r\n");
+        for (Map.Entry<String, String> header : response.headers.entrySet()) {
+            head.append(header.getKey()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        head.append("Content-Length: ").append(response.body.length).append("\r\n");
+        head.append(mKeepAlive ? "\r\n" : "Connection: close\r\n\r\n");
+        out.write(head.toString().getBytes("ISO-8859-1"));
+        out.write(response.body);
+        out.flush();
+    }
+}
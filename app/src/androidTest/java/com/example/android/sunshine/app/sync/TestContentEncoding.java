@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/*
+    Fetches the same forecast fixture from a loopback server using each Content-Encoding we
+    negotiate, and checks that the decoded stream parses to the same forecast every time.
+ */
+public class TestContentEncoding extends AndroidTestCase {
+
+    private StubHttpServer mServer;
+    private StubHttpServer.Response mResponse;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new StubHttpServer(new StubHttpServer.Dispatcher() {
+            @Override
+            public StubHttpServer.Response dispatch(StubHttpServer.Request request) {
+                return mResponse;
+            }
+        });
+        mServer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    private void fetchAndValidate(String error) throws Exception {
+        HttpURLConnection urlConnection =
+                (HttpURLConnection) new URL(mServer.getUrl("/forecast")).openConnection();
+        try {
+            ContentEncoding.acceptCompressed(urlConnection);
+            urlConnection.connect();
+
+            InputStream in = ContentEncoding.getDecodedInputStream(urlConnection);
+            TestForecastJsonParser.RecordingCallback callback =
+                    new TestForecastJsonParser.RecordingCallback();
+            ForecastJsonParser.parse(new InputStreamReader(in, "UTF-8"), callback);
+
+            assertEquals(error, "North Pole", callback.cityName);
+            assertEquals(error, 2, callback.days.size());
+        } finally {
+            urlConnection.disconnect();
+        }
+
+        String acceptEncoding = mServer.getRequests().get(0).headers.get("accept-encoding");
+        assertNotNull("Error: No Accept-Encoding was sent", acceptEncoding);
+        assertTrue("Error: gzip was not offered", acceptEncoding.contains("gzip"));
+        assertTrue("Error: deflate was not offered", acceptEncoding.contains("deflate"));
+    }
+
+    public void testGzip() throws Exception {
+        mResponse = StubHttpServer.Response.gzip(TestForecastJsonParser.TWO_DAY_FORECAST);
+        fetchAndValidate("Error: gzip response was not decoded");
+    }
+
+    public void testDeflate() throws Exception {
+        mResponse = StubHttpServer.Response.deflate(TestForecastJsonParser.TWO_DAY_FORECAST, true);
+        fetchAndValidate("Error: zlib deflate response was not decoded");
+    }
+
+    public void testRawDeflate() throws Exception {
+        mResponse = StubHttpServer.Response.deflate(TestForecastJsonParser.TWO_DAY_FORECAST, false);
+        fetchAndValidate("Error: raw deflate response was not decoded");
+    }
+
+    public void testUncompressed() throws Exception {
+        mResponse = StubHttpServer.Response.json(TestForecastJsonParser.TWO_DAY_FORECAST);
+        fetchAndValidate("Error: identity response was not read");
+    }
+}
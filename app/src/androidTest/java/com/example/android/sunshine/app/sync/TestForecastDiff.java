@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.app.utils.PollingCheck;
+
+/*
+    Stores forecasts through the sync adapter and checks, against the provider, that only the
+    days that differ from what is stored get written and notified.
+ */
+public class TestForecastDiff extends AndroidTestCase {
+
+    private static final String LOCATION = "94043";
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+    private static final int DAYS = 3;
+
+    private SunshineSyncAdapter mAdapter;
+    private long mToday;
+
+    // Only hears whether it was told about a change at all
+    static class ChangeObserver extends ContentObserver {
+        final HandlerThread mHT;
+        volatile boolean mChanged;
+
+        static ChangeObserver register(AndroidTestCase test, Uri uri) {
+            HandlerThread ht = new HandlerThread("ChangeObserverThread");
+            ht.start();
+            ChangeObserver observer = new ChangeObserver(ht);
+            test.getContext().getContentResolver().registerContentObserver(uri, true, observer);
+            return observer;
+        }
+
+        private ChangeObserver(HandlerThread ht) {
+            super(new Handler(ht.getLooper()));
+            mHT = ht;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            mChanged = true;
+        }
+
+        void unregister(AndroidTestCase test) {
+            test.getContext().getContentResolver().unregisterContentObserver(this);
+            mHT.quit();
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(
+                WeatherContract.IntradayEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(WeatherContract.LocationEntry.CONTENT_URI,
+                null, null);
+
+        // storeForecast never fetches, so there is no source
+        mAdapter = new SunshineSyncAdapter(mContext, false, null);
+        mToday = WeatherContract.normalizeDate(System.currentTimeMillis());
+    }
+
+    /*
+        Storing the forecast we already hold writes no rows, so no observer hears anything.
+     */
+    public void testUnchangedForecast() throws Exception {
+        assertEquals(DAYS, store(createForecast(-1)));
+
+        ChangeObserver observer = ChangeObserver.register(this, WeatherEntry.CONTENT_URI);
+        assertEquals("Error: An unchanged forecast shouldn't write any days", 0,
+                store(createForecast(-1)));
+        // Leave a notification that was on its way time to arrive
+        Thread.sleep(500);
+        observer.unregister(this);
+        assertFalse("Error: An unchanged forecast notified weather observers",
+                observer.mChanged);
+    }
+
+    /*
+        When one day changes, only its row is replaced and only its observers hear about it.
+     */
+    public void testChangedDay() throws Exception {
+        assertEquals(DAYS, store(createForecast(-1)));
+        long[] ids = readIds();
+
+        final ChangeObserver changedObserver = ChangeObserver.register(this,
+                WeatherEntry.buildWeatherLocationWithDate(LOCATION, mToday + DAY_IN_MILLIS));
+        ChangeObserver otherObserver = ChangeObserver.register(this,
+                WeatherEntry.buildWeatherLocationWithDate(LOCATION, mToday));
+        assertEquals("Error: Only the changed day should be written", 1,
+                store(createForecast(1)));
+
+        new PollingCheck(5000) {
+            @Override
+            protected boolean check() {
+                return changedObserver.mChanged;
+            }
+        }.run();
+        Thread.sleep(500);
+        changedObserver.unregister(this);
+        otherObserver.unregister(this);
+        assertFalse("Error: An unchanged day was notified", otherObserver.mChanged);
+
+        // A replaced row gets a new _ID; the ones left alone keep theirs
+        long[] changedIds = readIds();
+        assertEquals(ids[0], changedIds[0]);
+        assertTrue("Error: The changed day wasn't rewritten", ids[1] != changedIds[1]);
+        assertEquals(ids[2], changedIds[2]);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationWithDate(LOCATION, mToday + DAY_IN_MILLIS),
+                new String[]{WeatherEntry.COLUMN_SHORT_DESC}, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Rain", cursor.getString(0));
+        cursor.close();
+    }
+
+    private int store(Forecast forecast) {
+        return mAdapter.storeForecast(LOCATION, forecast,
+                new SyncTrace(System.currentTimeMillis(), LOCATION), new SyncCancellation());
+    }
+
+    /*
+        @param changedDay the day to give other weather than the rest, or -1 for none
+     */
+    private Forecast createForecast(int changedDay) {
+        Forecast forecast = new Forecast(Forecast.STATUS_OK);
+        forecast.cityId = 5375480;
+        forecast.cityName = "Mountain View";
+        forecast.cityLatitude = 37.3861;
+        forecast.cityLongitude = -122.0838;
+        for (int i = 0; i < DAYS; i++) {
+            boolean changed = i == changedDay;
+            forecast.days.add(new DayForecast(mToday + i * DAY_IN_MILLIS, 1013.5 + i, 60 + i,
+                    2.5, 180, changed ? 25.5 : 20.25 + i, 10.75 + i,
+                    changed ? "Rain" : "Clear", changed ? 500 : 800));
+        }
+        return forecast;
+    }
+
+    /*
+        @return the _ID of each stored day, in date order
+     */
+    private long[] readIds() {
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(LOCATION),
+                new String[]{WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID},
+                null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals(DAYS, cursor.getCount());
+        long[] ids = new long[DAYS];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            ids[i] = cursor.getLong(0);
+        }
+        cursor.close();
+        return ids;
+    }
+}
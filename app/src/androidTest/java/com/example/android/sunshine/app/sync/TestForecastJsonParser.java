@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import org.json.JSONException;
+
+import java.io.EOFException;
+import java.io.StringReader;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TestForecastJsonParser extends AndroidTestCase {
+
+    // Two days, with "list" ahead of "city" to make sure we don't rely on the field order
+    static final String TWO_DAY_FORECAST = "{\"cod\":\"200\",\"message\":0.0134,\"cnt\":2,\"list\":[" +
+            "{\"dt\":1419076800,\"temp\":{\"day\":-9.5,\"min\":-12.83,\"max\":-9.5,\"night\":-12.83}," +
+            "\"pressure\":994.64,\"humidity\":82,\"weather\":[{\"id\":600,\"main\":\"Snow\"," +
+            "\"description\":\"light snow\",\"icon\":\"13d\"}],\"speed\":1.22,\"deg\":197,\"snow\":0.5}," +
+            "{\"dt\":1419163200,\"temp\":{\"day\":-13.14,\"min\":-18.06,\"max\":-11.61}," +
+            "\"pressure\":996.15,\"humidity\":77.5,\"weather\":[{\"id\":800,\"main\":\"Clear\"}," +
+            "{\"id\":701,\"main\":\"Mist\"}],\"speed\":1.46,\"deg\":214}]," +
+            "\"city\":{\"id\":5861897,\"name\":\"North Pole\",\"coord\":{\"lon\":-147.353,\"lat\":64.7488}," +
+            "\"country\":\"US\",\"population\":0}}";
+
+    static class RecordingCallback implements ForecastJsonParser.Callback {
+        long cityId;
+        String cityName;
+        double lat;
+        double lon;
+        final List<Object[]> days = new ArrayList<Object[]>();
+
+        @Override
+        public void onCity(long cityId, String cityName, double lat, double lon) {
+            this.cityId = cityId;
+            this.cityName = cityName;
+            this.lat = lat;
+            this.lon = lon;
+        }
+
+        @Override
+        public void onDay(int dayIndex, double pressure, int humidity, double windSpeed,
+                          double windDirection, double high, double low, String description,
+                          int weatherId) {
+            days.add(new Object[]{dayIndex, pressure, humidity, windSpeed, windDirection,
+                    high, low, description, weatherId});
+        }
+    }
+
+    public void testParseForecast() throws Throwable {
+        RecordingCallback callback = new RecordingCallback();
+        int code = ForecastJsonParser.parse(new StringReader(TWO_DAY_FORECAST), callback);
+
+        assertEquals(HttpURLConnection.HTTP_OK, code);
+        assertEquals(5861897L, callback.cityId);
+        assertEquals("North Pole", callback.cityName);
+        assertEquals(64.7488, callback.lat);
+        assertEquals(-147.353, callback.lon);
+
+        assertEquals("Error: Expected both days to be reported", 2, callback.days.size());
+        Object[] first = callback.days.get(0);
+        assertEquals(0, first[0]);
+        assertEquals(994.64, first[1]);
+        assertEquals(82, first[2]);
+        assertEquals(-9.5, first[5]);
+        assertEquals(-12.83, first[6]);
+        assertEquals("Snow", first[7]);
+        assertEquals(600, first[8]);
+
+        // Only the first "weather" element counts, and fractional humidity truncates
+        Object[] second = callback.days.get(1);
+        assertEquals(1, second[0]);
+        assertEquals(77, second[2]);
+        assertEquals("Clear", second[7]);
+        assertEquals(800, second[8]);
+    }
+
+    public void testParseErrorCode() throws Throwable {
+        RecordingCallback callback = new RecordingCallback();
+        int code = ForecastJsonParser.parse(
+                new StringReader("{\"cod\":\"404\",\"message\":\"Error: Not found city\"}"),
+                callback);
+
+        assertEquals(HttpURLConnection.HTTP_NOT_FOUND, code);
+        assertNull(callback.cityName);
+        assertTrue(callback.days.isEmpty());
+    }
+
+    public void testParseMalformed() throws Throwable {
+        try {
+            ForecastJsonParser.parse(new StringReader("{\"list\":[{\"pressure\":\"high\"}]}"),
+                    new RecordingCallback());
+            fail("Error: Expected a JSONException for a non-numeric pressure");
+        } catch (JSONException expected) {
+        }
+    }
+
+    /*
+        A day without its pressure has to fail the parse on either path, rather than being
+        stored with a pressure of 0.
+     */
+    public void testParseMissingField() throws Throwable {
+        String forecast = TWO_DAY_FORECAST.replace("\"pressure\":996.15,", "");
+        assertFalse(forecast.equals(TWO_DAY_FORECAST));
+        try {
+            ForecastJsonParser.parse(new StringReader(forecast), new RecordingCallback());
+            fail("Error: Expected a JSONException for a day without a pressure");
+        } catch (JSONException expected) {
+        }
+    }
+
+    public void testParseEmpty() throws Throwable {
+        try {
+            ForecastJsonParser.parse(new StringReader(""), new RecordingCallback());
+            fail("Error: Expected an EOFException for an empty response");
+        } catch (EOFException expected) {
+        }
+    }
+}
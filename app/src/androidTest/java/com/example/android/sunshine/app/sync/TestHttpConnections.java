@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/*
+    Fetches several forecasts in a row from a keep-alive loopback server, the way a sync over
+    several locations does, and checks that released connections get reused.
+ */
+public class TestHttpConnections extends AndroidTestCase {
+
+    private static final int FETCH_COUNT = 3;
+
+    private StubHttpServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new StubHttpServer(new StubHttpServer.Dispatcher() {
+            @Override
+            public StubHttpServer.Response dispatch(StubHttpServer.Request request)
+                    throws IOException {
+                return StubHttpServer.Response.gzip(TestForecastJsonParser.TWO_DAY_FORECAST);
+            }
+        });
+        mServer.setKeepAlive(true);
+        mServer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    private void fetch(String path) throws Exception {
+        HttpURLConnection urlConnection = HttpConnections.openGet(new URL(mServer.getUrl(path)));
+        InputStream in = null;
+        try {
+            in = ContentEncoding.getDecodedInputStream(urlConnection);
+            TestForecastJsonParser.RecordingCallback callback =
+                    new TestForecastJsonParser.RecordingCallback();
+            ForecastJsonParser.parse(new InputStreamReader(in, "UTF-8"), callback);
+            assertEquals("Error: Forecast was not parsed", 2, callback.days.size());
+        } finally {
+            HttpConnections.release(urlConnection, in, true);
+        }
+    }
+
+    public void testReleasedConnectionIsReused() throws Exception {
+        for (int i = 0; i < FETCH_COUNT; i++) {
+            fetch("/forecast?id=" + i);
+        }
+
+        assertEquals("Error: Not every request reached the server",
+                FETCH_COUNT, mServer.getRequests().size());
+        assertEquals("Error: Completed responses should share one connection",
+                1, mServer.getConnectionCount());
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+public class TestIntradayRefresh extends AndroidTestCase {
+
+    private static final long STEP_IN_MILLIS = 1000 * 60 * 60 * 3;
+    // Five days of 3-hour steps, as a full sync fetches them
+    private static final int STEPS = 40;
+    private static final long FETCHED_AT = 1433116800000L;
+
+    // What a fetch at FETCHED_AT returns when the feed starts at the next step, an hour away
+    private static final long NEWEST_SLOT_START =
+            FETCHED_AT + STEP_IN_MILLIS / 3 + (STEPS - 1) * STEP_IN_MILLIS;
+
+    public void testNoSlotsAreNotCurrent() {
+        assertFalse("Error: A location without slots should fetch them",
+                SunshineSyncAdapter.isIntradayCurrent(0, FETCHED_AT));
+    }
+
+    public void testFreshSlotsAreCurrent() {
+        assertTrue("Error: Slots just fetched should not be fetched again",
+                SunshineSyncAdapter.isIntradayCurrent(NEWEST_SLOT_START, FETCHED_AT));
+        assertTrue("Error: Slots should stay current until the feed moves on",
+                SunshineSyncAdapter.isIntradayCurrent(NEWEST_SLOT_START,
+                        FETCHED_AT + STEP_IN_MILLIS));
+    }
+
+    public void testSlotsAStepBehindAreRefetched() {
+        assertFalse("Error: Slots the feed has moved past should be fetched again",
+                SunshineSyncAdapter.isIntradayCurrent(NEWEST_SLOT_START,
+                        FETCHED_AT + 2 * STEP_IN_MILLIS));
+    }
+}
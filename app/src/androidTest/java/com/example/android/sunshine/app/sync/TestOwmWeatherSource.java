@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+    Runs the OWM client against FakeOwmServer: what it makes of the recorded forecasts, how it
+    copes with a slow or failing server, and how long a run of fetches takes.  The timings are
+    logged so that runs can be compared across changes.
+ */
+public class TestOwmWeatherSource extends AndroidTestCase {
+    private static final String LOG_TAG = TestOwmWeatherSource.class.getSimpleName();
+
+    private static final String LOCATION = "94043";
+    private static final long CITY_ID = 5375480;
+    private static final int DAYS = 14;
+    private static final int SLOTS = 40;
+    private static final long SLOT_IN_MILLIS = 1000 * 60 * 60 * 3;
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+    private static final int BENCHMARK_FETCHES = 50;
+
+    private FakeOwmServer mServer;
+    private OwmWeatherSource mSource;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new FakeOwmServer();
+        mServer.addFixture(LOCATION, CITY_ID,
+                FakeOwmServer.forecastJson(CITY_ID, "Mountain View", DAYS));
+        mServer.addFixture("99705", 5861897, TestForecastJsonParser.TWO_DAY_FORECAST);
+        mServer.addIntradayFixture(LOCATION, CITY_ID,
+                FakeOwmServer.intradayJson(CITY_ID, "Mountain View", SLOTS));
+        mServer.setKeepAlive(true);
+        mServer.start();
+        mSource = new OwmWeatherSource(mServer.getApiUrl(), "test");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    private Forecast fetch(String locationSetting, long cityId, SyncTrace trace)
+            throws Exception {
+        return mSource.fetchForecast(
+                new ForecastRequest(locationSetting, cityId, null, null, DAYS), trace,
+                new SyncCancellation());
+    }
+
+    private Forecast fetch(String locationSetting) throws Exception {
+        return fetch(locationSetting, 0, new SyncTrace(System.currentTimeMillis(), locationSetting));
+    }
+
+    public void testFetchForecast() throws Exception {
+        SyncTrace trace = new SyncTrace(System.currentTimeMillis(), LOCATION);
+        Forecast forecast = fetch(LOCATION, 0, trace);
+
+        assertEquals(Forecast.STATUS_OK, forecast.status);
+        assertEquals(CITY_ID, forecast.cityId);
+        assertEquals("Mountain View", forecast.cityName);
+        assertEquals("Error: Expected every day of the fixture", DAYS, forecast.days.size());
+        for (int i = 1; i < DAYS; i++) {
+            assertEquals("Error: Days should be consecutive",
+                    DAY_IN_MILLIS, forecast.days.get(i).date - forecast.days.get(i - 1).date);
+        }
+        DayForecast first = forecast.days.get(0);
+        assertEquals(800, first.weatherId);
+        assertEquals("sky is clear", first.description);
+        assertTrue(first.high > first.low);
+
+        String[] stages = new String[trace.getRows().size()];
+        long downloaded = 0;
+        for (int i = 0; i < stages.length; i++) {
+            ContentValues row = trace.getRows().get(i);
+            stages[i] = row.getAsString(WeatherContract.SyncHistoryEntry.COLUMN_STAGE);
+            downloaded += row.getAsLong(WeatherContract.SyncHistoryEntry.COLUMN_BYTES);
+        }
+        assertEquals(Arrays.asList(WeatherContract.SyncHistoryEntry.STAGE_CONNECT,
+                WeatherContract.SyncHistoryEntry.STAGE_FIRST_BYTE,
+                WeatherContract.SyncHistoryEntry.STAGE_DOWNLOAD,
+                WeatherContract.SyncHistoryEntry.STAGE_PARSE), Arrays.asList(stages));
+        assertTrue("Error: Download wasn't metered", downloaded > 0);
+    }
+
+    public void testKnownCityIsFetchedById() throws Exception {
+        Forecast forecast = fetch("ignored", 5861897,
+                new SyncTrace(System.currentTimeMillis(), "ignored"));
+
+        assertEquals(Forecast.STATUS_OK, forecast.status);
+        assertEquals("North Pole", forecast.cityName);
+        assertEquals(2, forecast.days.size());
+        assertTrue("Error: Request should name the city by id",
+                mServer.getRequests().get(0).path.contains("id=5861897"));
+    }
+
+    public void testFetchIntraday() throws Exception {
+        Forecast forecast = mSource.fetchIntraday(
+                new ForecastRequest(LOCATION, CITY_ID, "\"etag\"", null, SLOTS / 8),
+                new SyncTrace(System.currentTimeMillis(), LOCATION), new SyncCancellation());
+
+        assertEquals(Forecast.STATUS_OK, forecast.status);
+        assertEquals("Mountain View", forecast.cityName);
+        assertTrue("Error: An intraday fetch has no days", forecast.days.isEmpty());
+        assertEquals("Error: Expected every slot of the fixture", SLOTS, forecast.slots.size());
+        for (int i = 1; i < SLOTS; i++) {
+            assertEquals("Error: Slots should be three hours apart",
+                    SLOT_IN_MILLIS, forecast.slots.get(i).time - forecast.slots.get(i - 1).time);
+        }
+        SlotForecast first = forecast.slots.get(0);
+        assertEquals(1419033600000L, first.time);
+        assertEquals(500, first.weatherId);
+        assertEquals(1012.35, first.pressure, 0.001);
+        assertEquals(2.5, first.windSpeed, 0.001);
+
+        StubHttpServer.Request request = mServer.getRequests().get(0);
+        assertTrue("Error: cnt should count slots", request.path.contains("cnt=40&"));
+        assertNull("Error: The daily validators don't apply to the 3-hour forecast",
+                request.headers.get("if-none-match"));
+    }
+
+    public void testRequestedDays() throws Exception {
+        // What the current tier of the sync asks for
+        mSource.fetchForecast(new ForecastRequest(LOCATION, CITY_ID, null, null, 1),
+                new SyncTrace(System.currentTimeMillis(), LOCATION), new SyncCancellation());
+        assertTrue("Error: Request should ask for a single day",
+                mServer.getRequests().get(0).path.contains("cnt=1&"));
+    }
+
+    public void testUnknownLocation() throws Exception {
+        assertEquals(Forecast.STATUS_NOT_FOUND, fetch("nowhere").status);
+    }
+
+    public void testLatency() throws Exception {
+        mServer.setLatencyMillis(200);
+        long start = System.currentTimeMillis();
+        fetch(LOCATION);
+        assertTrue("Error: Response came back before the latency had passed",
+                System.currentTimeMillis() - start >= 200);
+    }
+
+    public void testBandwidth() throws Exception {
+        // Learn the size of the response, then hold it to a quarter of that per 100ms
+        fetch(LOCATION);
+        long bytes = mServer.getBytesSent();
+        mServer.setBandwidth((int) (bytes * 10 / 4));
+
+        long start = System.currentTimeMillis();
+        assertEquals(Forecast.STATUS_OK, fetch(LOCATION).status);
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("Error: Throttled response took only " + elapsed + "ms", elapsed >= 300);
+    }
+
+    public void testServerErrorInjection() throws Exception {
+        mServer.setErrorEvery(2, 503);
+        assertEquals(Forecast.STATUS_OK, fetch(LOCATION).status);
+        assertEquals(Forecast.STATUS_SERVER_ERROR, fetch(LOCATION).status);
+        assertEquals(Forecast.STATUS_OK, fetch(LOCATION).status);
+    }
+
+    public void testDroppedConnection() throws Exception {
+        mServer.setErrorEvery(1, 0);
+        try {
+            fetch(LOCATION);
+            fail("Error: A response cut short should fail the fetch");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testCanceledBeforeConnect() throws Exception {
+        SyncCancellation cancellation = new SyncCancellation();
+        cancellation.cancel();
+        try {
+            mSource.fetchForecast(new ForecastRequest(LOCATION, 0, null, null, DAYS),
+                    new SyncTrace(System.currentTimeMillis(), LOCATION), cancellation);
+            fail("Error: A canceled sync should not fetch");
+        } catch (SyncCanceledException e) {
+            // expected
+        }
+        assertTrue("Error: Nothing should have reached the server",
+                mServer.getRequests().isEmpty());
+    }
+
+    /*
+        Cancels a fetch that is stuck in a slow download from another thread, the way
+        onSyncCanceled does, and checks that it gives up right away instead of reading on.
+     */
+    public void testCancelDuringDownload() throws Exception {
+        fetch(LOCATION);
+        long bytes = mServer.getBytesSent();
+        // The whole response would take about ten seconds
+        mServer.setBandwidth((int) (bytes / 10));
+
+        final SyncCancellation cancellation = new SyncCancellation();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(500);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                cancellation.cancel();
+            }
+        }).start();
+
+        long start = System.currentTimeMillis();
+        try {
+            mSource.fetchForecast(new ForecastRequest(LOCATION, 0, null, null, DAYS),
+                    new SyncTrace(System.currentTimeMillis(), LOCATION), cancellation);
+            fail("Error: A canceled fetch should not return a forecast");
+        } catch (SyncCanceledException e) {
+            // expected
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("Error: Cancel took " + elapsed + "ms to stop the download", elapsed < 3000);
+    }
+
+    public void testThroughput() throws Exception {
+        mServer.setLatencyMillis(20);
+        long[] elapsed = new long[BENCHMARK_FETCHES];
+        long runStart = System.nanoTime();
+        for (int i = 0; i < BENCHMARK_FETCHES; i++) {
+            long start = System.nanoTime();
+            assertEquals(Forecast.STATUS_OK, fetch(LOCATION).status);
+            elapsed[i] = (System.nanoTime() - start) / 1000;
+        }
+        long runMillis = (System.nanoTime() - runStart) / 1000000;
+
+        Arrays.sort(elapsed);
+        long p50 = elapsed[BENCHMARK_FETCHES / 2];
+        long p95 = elapsed[BENCHMARK_FETCHES * 95 / 100];
+        Log.d(LOG_TAG, BENCHMARK_FETCHES + " fetches in " + runMillis + "ms, p50 " + p50
+                + "us, p95 " + p95 + "us, " + mServer.getConnectionCount() + " connections");
+
+        assertTrue("Error: Fetches should reuse the connection",
+                mServer.getConnectionCount() < BENCHMARK_FETCHES);
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class TestRecentLocations extends AndroidTestCase {
+
+    public void testKeepsMostRecentlyUsed() {
+        RecentLocations recent = new RecentLocations("94043",
+                Arrays.asList("10001", "94043", "60601", "73301", "99705"), 3);
+
+        assertEquals("Error: The preferred location should come first, then the most recent",
+                Arrays.asList("94043", "10001", "60601"), recent.getKept());
+        assertEquals(Arrays.asList("73301", "99705"), recent.getEvicted());
+    }
+
+    public void testPreferredLocationNotStoredYet() {
+        RecentLocations recent = new RecentLocations("94043",
+                Arrays.asList("10001", "60601"), 2);
+
+        assertEquals(Arrays.asList("94043", "10001"), recent.getKept());
+        assertEquals(Collections.singletonList("60601"), recent.getEvicted());
+    }
+
+    public void testNothingToEvict() {
+        RecentLocations recent = new RecentLocations("94043",
+                Collections.singletonList("94043"), RecentLocations.MAX_LOCATIONS);
+
+        assertEquals(Collections.singletonList("94043"), recent.getKept());
+        assertTrue(recent.getEvicted().isEmpty());
+    }
+}
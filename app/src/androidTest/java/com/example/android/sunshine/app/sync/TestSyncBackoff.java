@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import java.io.EOFException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.Random;
+
+public class TestSyncBackoff extends AndroidTestCase {
+
+    // Always jitters by the same fraction of the delay
+    static class FixedRandom extends Random {
+        final double value;
+
+        FixedRandom(double value) {
+            this.value = value;
+        }
+
+        @Override
+        public double nextDouble() {
+            return value;
+        }
+    }
+
+    public void testDelayGrowsExponentially() {
+        TestSyncScheduler.FakeClock clock = new TestSyncScheduler.FakeClock(9, 0);
+        SyncBackoff backoff = new SyncBackoff(clock, new FixedRandom(1.0), 0, 0);
+
+        long previous = 0;
+        for (int i = 0; i < 5; i++) {
+            long delay = backoff.onFailure() - clock.now;
+            assertEquals("Error: Delay should double with every failure",
+                    SyncBackoff.BASE_DELAY_MILLIS << i, delay);
+            assertTrue(delay > previous);
+            previous = delay;
+        }
+    }
+
+    public void testDelayIsCapped() {
+        TestSyncScheduler.FakeClock clock = new TestSyncScheduler.FakeClock(9, 0);
+        SyncBackoff backoff = new SyncBackoff(clock, new FixedRandom(1.0), 100, 0);
+
+        assertEquals(SyncBackoff.MAX_DELAY_MILLIS, backoff.onFailure() - clock.now);
+    }
+
+    public void testJitterKeepsAtLeastHalfTheDelay() {
+        TestSyncScheduler.FakeClock clock = new TestSyncScheduler.FakeClock(9, 0);
+        SyncBackoff backoff = new SyncBackoff(clock, new FixedRandom(0.0), 0, 0);
+
+        assertEquals(SyncBackoff.BASE_DELAY_MILLIS / 2, backoff.onFailure() - clock.now);
+    }
+
+    public void testCircuitOpensAfterRepeatedFailures() {
+        TestSyncScheduler.FakeClock clock = new TestSyncScheduler.FakeClock(9, 0);
+        SyncBackoff backoff = new SyncBackoff(clock, new FixedRandom(0.5), 0, 0);
+
+        for (int i = 1; i < SyncBackoff.CIRCUIT_THRESHOLD; i++) {
+            backoff.onFailure();
+            assertFalse("Error: Circuit opened after only " + i + " failures",
+                    backoff.isCircuitOpen());
+        }
+        long retryAt = backoff.onFailure();
+        assertTrue("Error: Circuit should be open", backoff.isCircuitOpen());
+
+        // Half-open once the delay has passed; a trial pass decides what happens next
+        clock.now = retryAt;
+        assertFalse(backoff.isCircuitOpen());
+        backoff.onFailure();
+        assertTrue("Error: A failed trial should reopen the circuit", backoff.isCircuitOpen());
+
+        backoff.onSuccess();
+        assertFalse(backoff.isCircuitOpen());
+        assertEquals(0, backoff.getFailureCount());
+    }
+
+    public void testStateSurvivesRestore() {
+        TestSyncScheduler.FakeClock clock = new TestSyncScheduler.FakeClock(9, 0);
+        SyncBackoff backoff = new SyncBackoff(clock, new FixedRandom(0.5), 0, 0);
+        for (int i = 0; i < SyncBackoff.CIRCUIT_THRESHOLD; i++) {
+            backoff.onFailure();
+        }
+
+        // What the adapter does after the process is restarted
+        SyncBackoff restored = new SyncBackoff(clock, new FixedRandom(0.5),
+                backoff.getFailureCount(), backoff.getRetryAtMillis());
+        assertTrue("Error: Restored circuit should still be open", restored.isCircuitOpen());
+        assertEquals(backoff.getRetryAtMillis(), restored.getRetryAtMillis());
+    }
+
+    /*
+        Errors from being offline mustn't count towards the circuit, or it would stay open long
+        after the connection came back.  Only a server that was reached and didn't answer does.
+     */
+    public void testOfflineIsNotAServerFailure() {
+        assertFalse("Error: An unknown host counted against the server",
+                SyncBackoff.isServerFailure(new UnknownHostException("api.openweathermap.org")));
+        assertFalse("Error: No route to host counted against the server",
+                SyncBackoff.isServerFailure(new NoRouteToHostException()));
+        assertFalse(SyncBackoff.isServerFailure(new ConnectException()));
+        assertFalse(SyncBackoff.isServerFailure(new EOFException()));
+
+        assertTrue("Error: A timeout should count against the server",
+                SyncBackoff.isServerFailure(new SocketTimeoutException()));
+    }
+}
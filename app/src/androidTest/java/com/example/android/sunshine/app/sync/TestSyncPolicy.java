@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+public class TestSyncPolicy extends AndroidTestCase {
+
+    static class FakeDeviceState implements SyncPolicy.DeviceState {
+        boolean networkAvailable;
+        boolean metered;
+        boolean charging;
+
+        FakeDeviceState(boolean networkAvailable, boolean metered, boolean charging) {
+            this.networkAvailable = networkAvailable;
+            this.metered = metered;
+            this.charging = charging;
+        }
+
+        @Override
+        public boolean isNetworkAvailable() {
+            return networkAvailable;
+        }
+
+        @Override
+        public boolean isActiveNetworkMetered() {
+            return metered;
+        }
+
+        @Override
+        public boolean isCharging() {
+            return charging;
+        }
+    }
+
+    public void testUnmeteredRunsEverything() {
+        SyncPolicy policy = new SyncPolicy(new FakeDeviceState(true, false, false));
+
+        assertTrue(policy.isUnrestricted());
+        assertEquals(SunshineSyncAdapter.SYNC_TIER_FULL,
+                policy.getTier(SunshineSyncAdapter.SYNC_TIER_FULL, false));
+        assertTrue(policy.allowsArtPrefetch());
+    }
+
+    public void testMeteredDefersFullSync() {
+        SyncPolicy policy = new SyncPolicy(new FakeDeviceState(true, true, false));
+
+        assertFalse(policy.isUnrestricted());
+        assertEquals("Error: A periodic full sync should only refresh today on cellular",
+                SunshineSyncAdapter.SYNC_TIER_CURRENT,
+                policy.getTier(SunshineSyncAdapter.SYNC_TIER_FULL, false));
+        assertEquals(SunshineSyncAdapter.SYNC_TIER_CURRENT,
+                policy.getTier(SunshineSyncAdapter.SYNC_TIER_CURRENT, false));
+        assertFalse("Error: Art should wait for Wi-Fi or a charger", policy.allowsArtPrefetch());
+    }
+
+    public void testManualSyncIsNotDeferred() {
+        SyncPolicy policy = new SyncPolicy(new FakeDeviceState(true, true, false));
+
+        assertEquals("Error: The user asked for this sync and is waiting on it",
+                SunshineSyncAdapter.SYNC_TIER_FULL,
+                policy.getTier(SunshineSyncAdapter.SYNC_TIER_FULL, true));
+        assertFalse(policy.allowsArtPrefetch());
+    }
+
+    public void testChargingLiftsMeteredLimit() {
+        FakeDeviceState state = new FakeDeviceState(true, true, false);
+        SyncPolicy policy = new SyncPolicy(state);
+        assertFalse(policy.isUnrestricted());
+
+        // What DeferredSyncReceiver hears about when the charger goes in
+        state.charging = true;
+        assertTrue(policy.isUnrestricted());
+        assertEquals(SunshineSyncAdapter.SYNC_TIER_FULL,
+                policy.getTier(SunshineSyncAdapter.SYNC_TIER_FULL, false));
+        assertTrue(policy.allowsArtPrefetch());
+    }
+
+    public void testNoNetwork() {
+        SyncPolicy policy = new SyncPolicy(new FakeDeviceState(false, false, true));
+
+        assertFalse("Error: Nothing is unrestricted without a network", policy.isUnrestricted());
+        assertFalse(policy.allowsArtPrefetch());
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.os.HandlerThread;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class TestSyncRequestCoalescer extends AndroidTestCase {
+
+    private static final long DEBOUNCE_MILLIS = 100;
+    private static final long MAX_WAIT_MILLIS = 400;
+
+    private HandlerThread mThread;
+    private SyncRequestCoalescer mCoalescer;
+    private final List<String> mDispatched =
+            Collections.synchronizedList(new ArrayList<String>());
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mThread = new HandlerThread("TestSyncRequestCoalescer");
+        mThread.start();
+        mCoalescer = new SyncRequestCoalescer(mThread.getLooper(), DEBOUNCE_MILLIS,
+                MAX_WAIT_MILLIS, new SyncRequestCoalescer.SyncDispatcher() {
+                    @Override
+                    public void requestSync(String locationSetting) {
+                        mDispatched.add(locationSetting);
+                    }
+                });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mThread.quit();
+        super.tearDown();
+    }
+
+    public void testBurstCollapsesToOneSync() throws Exception {
+        mCoalescer.request("94043");
+        mCoalescer.request("94043");
+        mCoalescer.request("94043");
+        assertTrue("Error: Sync requested before the burst settled", mDispatched.isEmpty());
+
+        Thread.sleep(DEBOUNCE_MILLIS * 3);
+        assertEquals(Collections.singletonList("94043"), mDispatched);
+    }
+
+    public void testRequestsAreKeyedByLocation() throws Exception {
+        mCoalescer.request("94043");
+        mCoalescer.request("99705");
+        mCoalescer.request("94043");
+
+        Thread.sleep(DEBOUNCE_MILLIS * 3);
+        assertEquals("Error: Expected one sync per location", 2, mDispatched.size());
+        assertTrue(mDispatched.contains("94043"));
+        assertTrue(mDispatched.contains("99705"));
+    }
+
+    public void testSteadyRequestsStillSync() throws Exception {
+        long start = System.currentTimeMillis();
+        while (System.currentTimeMillis() - start < MAX_WAIT_MILLIS * 2) {
+            mCoalescer.request("94043");
+            Thread.sleep(DEBOUNCE_MILLIS / 4);
+        }
+        assertFalse("Error: Requests arriving faster than the debounce were never synced",
+                mDispatched.isEmpty());
+    }
+
+    public void testRequestDuringSyncIsMerged() throws Exception {
+        List<String> running = Collections.singletonList("94043");
+        mCoalescer.onSyncStarted(running);
+        mCoalescer.request("94043");
+        mCoalescer.request("99705");
+        Thread.sleep(DEBOUNCE_MILLIS * 3);
+        mCoalescer.onSyncFinished(running);
+
+        assertEquals("Error: Only the location not being synced should be requested",
+                Collections.singletonList("99705"), mDispatched);
+    }
+
+    public void testPendingRequestIsMergedIntoStartingSync() throws Exception {
+        mCoalescer.request("94043");
+        mCoalescer.onSyncStarted(Collections.singletonList("94043"));
+
+        Thread.sleep(DEBOUNCE_MILLIS * 3);
+        assertTrue("Error: The starting sync should cover the pending request",
+                mDispatched.isEmpty());
+    }
+
+    public void testRequestDuringCanceledSyncIsQueued() throws Exception {
+        List<String> running = Collections.singletonList("94043");
+        mCoalescer.onSyncStarted(running);
+        mCoalescer.request("94043");
+        mCoalescer.onSyncCanceled();
+        // The canceled sync won't fetch it, so the next request has to
+        mCoalescer.request("94043");
+        Thread.sleep(DEBOUNCE_MILLIS * 3);
+        mCoalescer.onSyncFinished(running);
+
+        assertEquals("Error: A request after the cancel should start a new sync",
+                Collections.singletonList("94043"), mDispatched);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.test.AndroidTestCase;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+public class TestSyncScheduler extends AndroidTestCase {
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    static class FakeClock implements Clock {
+        long now;
+
+        FakeClock(int hourOfDay, int minute) {
+            Calendar calendar = Calendar.getInstance(UTC);
+            calendar.clear();
+            calendar.set(2015, Calendar.JUNE, 1, hourOfDay, minute);
+            now = calendar.getTimeInMillis();
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return now;
+        }
+    }
+
+    public void testInitialScheduleMatchesFixedInterval() {
+        SyncScheduler scheduler = new SyncScheduler(new FakeClock(9, 0), UTC,
+                SyncScheduler.INITIAL_VOLATILITY);
+
+        assertEquals(SunshineSyncAdapter.SYNC_INTERVAL, scheduler.getSyncInterval());
+        assertEquals(SunshineSyncAdapter.SYNC_FLEXTIME, scheduler.getFlexTime());
+    }
+
+    public void testStableForecastSyncsLessOften() {
+        SyncScheduler scheduler = new SyncScheduler(new FakeClock(9, 0), UTC,
+                SyncScheduler.INITIAL_VOLATILITY);
+        for (int i = 0; i < 10; i++) {
+            scheduler.onSyncResult(0, 14);
+        }
+
+        assertTrue("Error: Volatility should decay when nothing changes",
+                scheduler.getVolatility() < 0.01f);
+        assertEquals(SyncScheduler.MAX_INTERVAL, scheduler.getSyncInterval());
+    }
+
+    public void testVolatileForecastSyncsMoreOften() {
+        SyncScheduler scheduler = new SyncScheduler(new FakeClock(9, 0), UTC,
+                SyncScheduler.INITIAL_VOLATILITY);
+        for (int i = 0; i < 10; i++) {
+            scheduler.onSyncResult(14, 14);
+        }
+
+        assertEquals(SyncScheduler.MIN_INTERVAL, scheduler.getSyncInterval());
+    }
+
+    public void testFailedSyncLeavesVolatility() {
+        SyncScheduler scheduler = new SyncScheduler(new FakeClock(9, 0), UTC, 0.25f);
+        scheduler.onSyncResult(0, 0);
+
+        assertEquals(0.25f, scheduler.getVolatility());
+    }
+
+    public void testIntervalIsRoundedToStep() {
+        SyncScheduler scheduler = new SyncScheduler(new FakeClock(9, 0), UTC, 0.33f);
+
+        assertEquals(0, scheduler.getSyncInterval() % SyncScheduler.INTERVAL_STEP);
+    }
+
+    public void testSyncLandsJustAfterMidnight() {
+        FakeClock clock = new FakeClock(22, 30);
+        SyncScheduler scheduler = new SyncScheduler(clock, UTC, SyncScheduler.INITIAL_VOLATILITY);
+
+        int interval = scheduler.getSyncInterval();
+        int flexTime = scheduler.getFlexTime();
+        int untilMidnight = 90 * 60;
+        assertTrue("Error: Sync shouldn't run before midnight",
+                interval - flexTime >= untilMidnight);
+        assertTrue("Error: Sync should run within the window after midnight",
+                interval <= untilMidnight + SyncScheduler.MIDNIGHT_WINDOW);
+
+        // Once past midnight the volatility alone decides again
+        clock.now += interval * 1000L;
+        assertEquals(SunshineSyncAdapter.SYNC_INTERVAL, scheduler.getSyncInterval());
+    }
+}
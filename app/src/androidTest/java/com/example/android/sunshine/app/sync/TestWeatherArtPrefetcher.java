@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2015 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.test.AndroidTestCase;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.Arrays;
+import java.util.Set;
+
+public class TestWeatherArtPrefetcher extends AndroidTestCase {
+
+    private static final String LOCATION = "94043";
+
+    private SharedPreferences mPrefs;
+    private String mArtPackKey;
+    private String mSavedArtPack;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(mContext);
+        mArtPackKey = mContext.getString(R.string.pref_art_pack_key);
+        mSavedArtPack = mPrefs.getString(mArtPackKey, null);
+        mPrefs.edit().putString(mArtPackKey,
+                mContext.getString(R.string.pref_art_pack_cute_dogs)).commit();
+
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(
+                WeatherContract.IntradayEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mPrefs.edit().putString(mArtPackKey, mSavedArtPack).commit();
+        super.tearDown();
+    }
+
+    public void testArtUrlsAreDistinct() {
+        // Two clear days, three kinds of rain that share one image, and a code with no art
+        Set<String> artUrls = WeatherArtPrefetcher.getArtUrls(mContext,
+                Arrays.asList(800, 800, 500, 501, 520, 999));
+
+        String artPack = mContext.getString(R.string.pref_art_pack_cute_dogs);
+        assertEquals(Arrays.asList(String.format(artPack, "clear"), String.format(artPack, "rain")),
+                Arrays.asList(artUrls.toArray()));
+    }
+
+    /*
+        On a metered network the art waits, before anything is read or downloaded.
+     */
+    public void testMeteredDefers() {
+        storeForecast();
+        SyncPolicy policy = new SyncPolicy(
+                new TestSyncPolicy.FakeDeviceState(true, true, false));
+
+        assertEquals(WeatherArtPrefetcher.PREFETCH_DEFERRED,
+                WeatherArtPrefetcher.prefetch(mContext, LOCATION, policy,
+                        new SyncCancellation()));
+    }
+
+    /*
+        A sync that was canceled by the time the art is due downloads none of it.
+     */
+    public void testCanceledFetchesNothing() {
+        storeForecast();
+        SyncPolicy policy = new SyncPolicy(
+                new TestSyncPolicy.FakeDeviceState(true, false, false));
+        SyncCancellation cancellation = new SyncCancellation();
+        cancellation.cancel();
+
+        assertEquals("Error: A canceled sync went on to fetch art", 0,
+                WeatherArtPrefetcher.prefetch(mContext, LOCATION, policy, cancellation));
+    }
+
+    /*
+        Stores a clear day and a rainy one from today, so that there is art to fetch.
+     */
+    private void storeForecast() {
+        ContentValues location = new ContentValues();
+        location.put(LocationEntry.COLUMN_LOCATION_SETTING, LOCATION);
+        location.put(LocationEntry.COLUMN_CITY_NAME, "Mountain View");
+        location.put(LocationEntry.COLUMN_COORD_LAT, 37.3861);
+        location.put(LocationEntry.COLUMN_COORD_LONG, -122.0838);
+        long locationId = ContentUris.parseId(
+                mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, location));
+
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        int[] weatherIds = {800, 500};
+        ContentValues[] days = new ContentValues[weatherIds.length];
+        for (int i = 0; i < days.length; i++) {
+            days[i] = new ContentValues();
+            days[i].put(WeatherEntry.COLUMN_LOC_KEY, locationId);
+            days[i].put(WeatherEntry.COLUMN_DATE, today + i * 1000 * 60 * 60 * 24);
+            days[i].put(WeatherEntry.COLUMN_DEGREES, 180);
+            days[i].put(WeatherEntry.COLUMN_HUMIDITY, 60);
+            days[i].put(WeatherEntry.COLUMN_PRESSURE, 1013.5);
+            days[i].put(WeatherEntry.COLUMN_MAX_TEMP, 20.5);
+            days[i].put(WeatherEntry.COLUMN_MIN_TEMP, 10.5);
+            days[i].put(WeatherEntry.COLUMN_SHORT_DESC, i == 0 ? "Clear" : "Rain");
+            days[i].put(WeatherEntry.COLUMN_WIND_SPEED, 2.5);
+            days[i].put(WeatherEntry.COLUMN_WEATHER_ID, weatherIds[i]);
+        }
+        assertEquals(days.length,
+                mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, days));
+    }
+}
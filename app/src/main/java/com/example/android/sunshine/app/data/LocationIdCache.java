@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import java.util.HashMap;
+
+/**
+ * Process-wide map from a location setting to the _ID of its row in the location table, so
+ * that the sync can find its locations without a query per city.
+ *
+ * WeatherProvider keeps it in step with the table: every location it inserts is added once
+ * the insert has committed, and anything that deletes locations or changes their settings
+ * clears it, since the provider can't tell which rows a selection hit.  Callers that fill it
+ * from their own queries use the generation to avoid adding an id the table dropped while they
+ * were querying.
+ */
+public class LocationIdCache {
+
+    // Returned by get for a location that isn't cached
+    public static final long MISSING = -1;
+
+    // All guarded by the class
+    private static final HashMap<String, Long> sIds = new HashMap<String, Long>();
+    private static int sGeneration;
+
+    private LocationIdCache() {
+    }
+
+    /**
+     * @return the row ID of the location, or MISSING if it isn't cached
+     */
+    public static synchronized long get(String locationSetting) {
+        Long id = sIds.get(locationSetting);
+        return id == null ? MISSING : id;
+    }
+
+    /**
+     * Read this before querying the location table for ids to put.
+     */
+    public static synchronized int getGeneration() {
+        return sGeneration;
+    }
+
+    /**
+     * Adds an id read from the location table, unless the cache was cleared since the
+     * generation was read.
+     */
+    public static synchronized void put(String locationSetting, long id, int generation) {
+        if (generation == sGeneration) {
+            sIds.put(locationSetting, id);
+        }
+    }
+
+    static synchronized void put(String locationSetting, long id) {
+        sIds.put(locationSetting, id);
+    }
+
+    static synchronized void clear() {
+        sIds.clear();
+        sGeneration++;
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * WeatherProvider's cache of recent query results, for the few queries that are asked again
+ * and again: today's row for the widgets, watch face, Muzei and the notification, and the
+ * forecast list on every loader restart.
+ *
+ * A result is read through once and kept as plain arrays.  Each hit gets a cursor of its own
+ * over those arrays, so it costs neither a query nor a copy.  The provider invalidates with
+ * every URI it notifies, once the write behind it has committed, dropping exactly the results
+ * an observer of that URI would have been told to requery.  Anything from the location table
+ * can be in a result, so a change there drops them all.  Results read while an invalidation
+ * happened are not kept, since they may predate the write.
+ */
+class QueryCache {
+
+    private final int mMaxEntries;
+    private final int mMaxRows;
+
+    // All guarded by this.  In access order, so the least recently used result goes first.
+    private final LinkedHashMap<List<Object>, Result> mResults;
+    private int mGeneration;
+    private long mHits;
+    private long mMisses;
+
+    /**
+     * @param maxEntries how many results to keep
+     * @param maxRows the most rows a result may have and still be kept
+     */
+    QueryCache(int maxEntries, int maxRows) {
+        mMaxEntries = maxEntries;
+        mMaxRows = maxRows;
+        mResults = new LinkedHashMap<List<Object>, Result>(maxEntries, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<Object>, Result> eldest) {
+                return size() > mMaxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return what a query is cached under
+     */
+    static List<Object> getKey(int route, Uri uri, String[] projection, String selection,
+                               String[] selectionArgs, String sortOrder) {
+        return Arrays.<Object>asList(route, uri.toString(),
+                projection == null ? null : Arrays.asList(projection),
+                selection,
+                selectionArgs == null ? null : Arrays.asList(selectionArgs),
+                sortOrder);
+    }
+
+    /**
+     * @return a cursor over the cached result, or null if there isn't one
+     */
+    synchronized Cursor get(List<Object> key) {
+        Result result = mResults.get(key);
+        if (result == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return new ResultCursor(result);
+    }
+
+    /**
+     * Read this before running a query to put.
+     */
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Reads the result of a query through and keeps it, unless it is too large or the cache
+     * was invalidated since the generation was read.
+     *
+     * @return a cursor to hand back in place of the one given, which may have been closed
+     */
+    @TargetApi(11)
+    Cursor put(List<Object> key, Uri uri, Cursor cursor, int generation) {
+        // Nothing before Honeycomb says what type a value is
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB
+                || cursor.getCount() > mMaxRows) {
+            return cursor;
+        }
+
+        String[] columns = cursor.getColumnNames();
+        int count = cursor.getCount();
+        Object[] values = new Object[count * columns.length];
+        String[] strings = new String[values.length];
+        try {
+            for (int i = 0; cursor.moveToNext(); i++) {
+                for (int column = 0; column < columns.length; column++) {
+                    int cell = i * columns.length + column;
+                    switch (cursor.getType(column)) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            values[cell] = cursor.getLong(column);
+                            break;
+                        case Cursor.FIELD_TYPE_FLOAT:
+                            values[cell] = cursor.getDouble(column);
+                            // SQLite formats a REAL its own way, which Double doesn't match
+                            strings[cell] = cursor.getString(column);
+                            break;
+                        case Cursor.FIELD_TYPE_STRING:
+                            values[cell] = cursor.getString(column);
+                            break;
+                        case Cursor.FIELD_TYPE_BLOB:
+                            values[cell] = cursor.getBlob(column);
+                            break;
+                        default:
+                            values[cell] = null;
+                    }
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        Result result = new Result(uri, columns, count, values, strings);
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mResults.put(key, result);
+            }
+        }
+        return new ResultCursor(result);
+    }
+
+    /**
+     * Drops the results that a change notified on the URI affects.
+     */
+    synchronized void invalidate(Uri changed) {
+        mGeneration++;
+        List<String> changedPath = changed.getPathSegments();
+        if (!changedPath.isEmpty()
+                && changedPath.get(0).equals(WeatherContract.PATH_LOCATION)) {
+            mResults.clear();
+            return;
+        }
+        Iterator<Result> results = mResults.values().iterator();
+        while (results.hasNext()) {
+            if (isNotifiedBy(results.next().mUri, changed)) {
+                results.remove();
+            }
+        }
+    }
+
+    synchronized long getHitCount() {
+        return mHits;
+    }
+
+    synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * @return whether an observer of the URI, watching its descendants as a cursor does, hears
+     * about a change notified on the other
+     */
+    private static boolean isNotifiedBy(Uri observed, Uri changed) {
+        if (!observed.getAuthority().equals(changed.getAuthority())) {
+            return false;
+        }
+        List<String> observedPath = observed.getPathSegments();
+        List<String> changedPath = changed.getPathSegments();
+        int common = Math.min(observedPath.size(), changedPath.size());
+        return observedPath.subList(0, common).equals(changedPath.subList(0, common));
+    }
+
+    private static class Result {
+        final Uri mUri;
+        final String[] mColumns;
+        final int mCount;
+        // Row by row, as the Long, Double, String or byte[] each value was read as
+        final Object[] mValues;
+        // SQLite's own text for the REAL values, null everywhere else
+        final String[] mStrings;
+
+        Result(Uri uri, String[] columns, int count, Object[] values, String[] strings) {
+            mUri = uri;
+            mColumns = columns;
+            mCount = count;
+            mValues = values;
+            mStrings = strings;
+        }
+    }
+
+    /**
+     * A cursor over a cached result.  The result is shared and never changes, so each cursor
+     * only has its own position.
+     */
+    @TargetApi(11)
+    private static class ResultCursor extends AbstractCursor {
+        private final Result mResult;
+
+        ResultCursor(Result result) {
+            mResult = result;
+        }
+
+        private Object get(int column) {
+            checkPosition();
+            return mResult.mValues[mPos * mResult.mColumns.length + column];
+        }
+
+        @Override
+        public int getCount() {
+            return mResult.mCount;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mResult.mColumns;
+        }
+
+        @Override
+        public String getString(int column) {
+            Object value = get(column);
+            if (value instanceof Double) {
+                return mResult.mStrings[mPos * mResult.mColumns.length + column];
+            }
+            return value == null ? null : value.toString();
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            Object value = get(column);
+            if (value instanceof Number) {
+                return ((Number) value).longValue();
+            }
+            if (value instanceof String) {
+                try {
+                    return Long.parseLong((String) value);
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return (float) getDouble(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            Object value = get(column);
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            }
+            if (value instanceof String) {
+                try {
+                    return Double.parseDouble((String) value);
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            Object value = get(column);
+            if (value == null || value instanceof byte[]) {
+                return (byte[]) value;
+            }
+            throw new UnsupportedOperationException("Column " + column + " isn't a blob");
+        }
+
+        @Override
+        public int getType(int column) {
+            Object value = get(column);
+            if (value == null) {
+                return Cursor.FIELD_TYPE_NULL;
+            } else if (value instanceof Long) {
+                return Cursor.FIELD_TYPE_INTEGER;
+            } else if (value instanceof Double) {
+                return Cursor.FIELD_TYPE_FLOAT;
+            } else if (value instanceof String) {
+                return Cursor.FIELD_TYPE_STRING;
+            }
+            return Cursor.FIELD_TYPE_BLOB;
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return get(column) == null;
+        }
+    }
+}
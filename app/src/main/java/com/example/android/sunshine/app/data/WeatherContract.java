@@ -43,12 +43,18 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_SYNC_HISTORY = "sync_history";
+    public static final String PATH_INTRADAY = "intraday";
 
     // To make it easy to query for the exact date, we normalize all dates that go into
     // the database to the start of the the Julian day at UTC.
     public static long normalizeDate(long startDate) {
+        return normalizeDate(new Time(), startDate);
+    }
+
+    // The same, reusing the time so that a batch of dates can be normalized with a single one
+    public static long normalizeDate(Time time, long startDate) {
         // normalize the start date to the beginning of the (UTC) day
-        Time time = new Time();
         time.set(startDate);
         int julianDay = Time.getJulianDay(startDate, time.gmtoff);
         return time.setJulianDay(julianDay);
@@ -81,9 +87,36 @@ public class WeatherContract {
         public static final String COLUMN_COORD_LAT = "coord_lat";
         public static final String COLUMN_COORD_LONG = "coord_long";
 
+        // OpenWeatherMap's own id for the city, as returned by the API.  Once we have it we ask
+        // for the city by id rather than making the server geocode the location string again.
+        public static final String COLUMN_CITY_ID = "city_id";
+
+        // HTTP cache validators (ETag and Last-Modified headers) from the last forecast we
+        // stored for this location.  They're sent back on the next sync so that an unchanged
+        // forecast comes back as a 304 instead of the whole payload.  Either may be null.
+        public static final String COLUMN_ETAG = "etag";
+        public static final String COLUMN_LAST_MODIFIED = "last_modified";
+
+        // When the location was last the preferred one, in milliseconds since the epoch.  The
+        // sync keeps forecasts for the most recently used locations and evicts the rest.
+        public static final String COLUMN_LAST_USED = "last_used";
+
+        // Query parameter for an insert that keeps the row already stored for the location
+        // setting, if there is one, and returns its URI instead of failing
+        public static final String PARAM_INSERT_OR_IGNORE = "insert_or_ignore";
+
         public static Uri buildLocationUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
+
+        public static Uri buildLocationInsertOrIgnoreUri() {
+            return CONTENT_URI.buildUpon().appendQueryParameter(PARAM_INSERT_OR_IGNORE, "1")
+                    .build();
+        }
+
+        public static boolean isInsertOrIgnore(Uri uri) {
+            return uri.getQueryParameter(PARAM_INSERT_OR_IGNORE) != null;
+        }
     }
 
     /* Inner class that defines the table contents of the weather table */
@@ -126,6 +159,16 @@ public class WeatherContract {
         // Degrees are meteorological degrees (e.g, 0 is north, 180 is south).  Stored as floats.
         public static final String COLUMN_DEGREES = "degrees";
 
+        // ContentResolver.call() method that applies a batch of operations followed by the
+        // rows of a WeatherRows, in one transaction
+        public static final String METHOD_APPLY_ROWS = "apply_weather_rows";
+
+        // ContentResolver.call() method that returns how the provider's cache of weather query
+        // results has done since the provider started, as longs under the keys below
+        public static final String METHOD_QUERY_CACHE_STATS = "query_cache_stats";
+        public static final String KEY_CACHE_HITS = "hits";
+        public static final String KEY_CACHE_MISSES = "misses";
+
         public static Uri buildWeatherUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
@@ -165,4 +208,128 @@ public class WeatherContract {
                 return 0;
         }
     }
+
+    /* Inner class that defines the table contents of the intraday table */
+    public static final class IntradayEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_INTRADAY).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_INTRADAY;
+
+        public static final String TABLE_NAME = "intraday";
+
+        // The forecast comes in 3-hour steps, so a day usually holds this many slots
+        public static final int SLOTS_PER_DAY = 8;
+
+        // Values are stored as integers in these fractions of their unit, which keeps a row
+        // small without losing anything the API sends that we show
+        public static final int TEMP_SCALE = 100;
+        public static final int PRESSURE_SCALE = 10;
+        public static final int WIND_SPEED_SCALE = 100;
+
+        // Column with the foreign key into the location table.
+        public static final String COLUMN_LOC_KEY = "location_id";
+        // Day the slot falls on, normalized like WeatherEntry.COLUMN_DATE
+        public static final String COLUMN_DATE = "date";
+        // When the 3-hour step the row is for starts, in milliseconds since the epoch.  A day
+        // with a daylight saving change has one step more or less than usual.
+        public static final String COLUMN_SLOT_START = "slot_start";
+        // Weather id as returned by API, to identify the icon and the description
+        public static final String COLUMN_WEATHER_ID = "weather_id";
+        // Temperature in hundredths of a degree Celsius
+        public static final String COLUMN_TEMP = "temp";
+        // Humidity in whole percent
+        public static final String COLUMN_HUMIDITY = "humidity";
+        // Pressure in tenths of a hPa
+        public static final String COLUMN_PRESSURE = "pressure";
+        // Windspeed in hundredths of a meter per second
+        public static final String COLUMN_WIND_SPEED = "wind";
+        // Meteorological degrees, rounded to whole ones
+        public static final String COLUMN_DEGREES = "degrees";
+
+        public static Uri buildIntradayLocationWithDate(String locationSetting, long date) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting)
+                    .appendPath(Long.toString(normalizeDate(date))).build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+
+        public static long getDateFromUri(Uri uri) {
+            return Long.parseLong(uri.getPathSegments().get(2));
+        }
+
+        /**
+         * @return the value as stored, in 1/scale of its unit
+         */
+        public static int toScaled(double value, int scale) {
+            return (int) Math.round(value * scale);
+        }
+
+        public static double fromScaled(int scaled, int scale) {
+            return (double) scaled / scale;
+        }
+    }
+
+    /* Inner class that defines the table contents of the sync_history table */
+    public static final class SyncHistoryEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_SYNC_HISTORY).build();
+
+        // Percentiles of each stage's duration over the history, one row per stage
+        public static final Uri STATS_URI =
+                CONTENT_URI.buildUpon().appendPath("stats").build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_SYNC_HISTORY;
+
+        public static final String TABLE_NAME = "sync_history";
+
+        // When the sync pass started, in milliseconds since the epoch.  Every stage of one pass
+        // shares it.
+        public static final String COLUMN_SYNC_STARTED = "sync_started";
+        // versionCode of the app that ran the sync, so that releases can be compared
+        public static final String COLUMN_APP_VERSION = "app_version";
+        // Location the stage worked on, or null for stages that cover the whole pass
+        public static final String COLUMN_LOCATION_SETTING = "location_setting";
+        // One of the STAGE_ values below
+        public static final String COLUMN_STAGE = "stage";
+        // How long the stage took, in microseconds
+        public static final String COLUMN_DURATION = "duration";
+        // Bytes that came over the network during the stage, as sent (so compressed)
+        public static final String COLUMN_BYTES = "bytes";
+        // Rows the stage produced or wrote
+        public static final String COLUMN_ROWS = "rows";
+
+        // Columns of the STATS_URI cursor, alongside COLUMN_STAGE.  Percentiles are in
+        // microseconds, like COLUMN_DURATION.
+        public static final String COLUMN_COUNT = "count";
+        public static final String COLUMN_P50 = "p50";
+        public static final String COLUMN_P95 = "p95";
+
+        // Per location
+        public static final String STAGE_CONNECT = "connect";
+        public static final String STAGE_FIRST_BYTE = "first_byte";
+        public static final String STAGE_DOWNLOAD = "download";
+        public static final String STAGE_PARSE = "parse";
+        public static final String STAGE_ADD_LOCATION = "add_location";
+        public static final String STAGE_DIFF = "diff";
+        // The inserts and the retention delete, which commit as one transaction
+        public static final String STAGE_COMMIT = "commit";
+        // Fetching and storing the 3-hour forecast, after the daily one
+        public static final String STAGE_INTRADAY = "intraday";
+
+        // Per pass
+        // Prefetching remote weather art for the preferred location
+        public static final String STAGE_ART = "art";
+        public static final String STAGE_WIDGETS = "widgets";
+        public static final String STAGE_MUZEI = "muzei";
+        public static final String STAGE_NOTIFICATION = "notification";
+        public static final String STAGE_WEAR = "wear";
+        public static final String STAGE_SYNC = "sync";
+    }
 }
@@ -15,37 +15,103 @@
  */
 package com.example.android.sunshine.app.data;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 
+import com.example.android.sunshine.app.data.WeatherContract.IntradayEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SyncHistoryEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
 /**
  * Manages a local database for weather data.
+ *
+ * The database is opened in write-ahead logging mode, so that the loaders, widgets and watch
+ * face keep reading the last committed forecast while a sync writes the next one, instead of
+ * waiting out its transaction.
  */
 public class WeatherDbHelper extends SQLiteOpenHelper {
 
     // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 9;
 
     static final String DATABASE_NAME = "weather.db";
 
+    // Indexes, named so the query plan tests can tell which one a query runs on
+    static final String INDEX_WEATHER_LOCATION_DATE = "weather_location_date";
+    static final String INDEX_LOCATION_LAST_USED = "location_last_used";
+    static final String INDEX_SYNC_HISTORY_STARTED = "sync_history_started";
+    static final String INDEX_SYNC_HISTORY_STAGE_DURATION = "sync_history_stage_duration";
+
+    // A few hundred rows fit in far less; this only caps what a connection may hold on to.
+    // 256 pages of the default 4K is 1M.
+    private static final int CACHE_SIZE_PAGES = 256;
+
     public WeatherDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    @Override
+    @TargetApi(16)
+    public void onConfigure(SQLiteDatabase db) {
+        super.onConfigure(db);
+        db.setForeignKeyConstraintsEnabled(true);
+        configureConnection(db);
+        if (db.isWriteAheadLoggingEnabled()) {
+            relaxSync(db);
+        }
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        // Older versions have no onConfigure, and no way to turn on WAL before the database is
+        // open
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN && !db.isReadOnly()) {
+            db.execSQL("PRAGMA foreign_keys = ON");
+            configureConnection(db);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                    && db.enableWriteAheadLogging()) {
+                relaxSync(db);
+            }
+        }
+    }
+
+    private static void configureConnection(SQLiteDatabase db) {
+        db.execSQL("PRAGMA cache_size = " + CACHE_SIZE_PAGES);
+    }
+
+    // Only for connections in WAL mode.  There a commit only has to reach the log, which is
+    // still safe from a crash of the app, and losing the last sync to a power cut costs no more
+    // than syncing again.  The rollback journal needs FULL to survive a power cut at all.
+    private static void relaxSync(SQLiteDatabase db) {
+        db.execSQL("PRAGMA synchronous = NORMAL");
     }
 
     @Override
     public void onCreate(SQLiteDatabase sqLiteDatabase) {
+        // Whatever ids were cached belonged to a database that is gone
+        LocationIdCache.clear();
+
         // Create a table to hold locations.  A location consists of the string supplied in the
-        // location setting, the city name, and the latitude and longitude
+        // location setting, the city name, and the latitude and longitude, plus OWM's city id and
+        // the HTTP cache validators from the last forecast we stored for it
         final String SQL_CREATE_LOCATION_TABLE = "CREATE TABLE " + LocationEntry.TABLE_NAME + " (" +
                 LocationEntry._ID + " INTEGER PRIMARY KEY," +
                 LocationEntry.COLUMN_LOCATION_SETTING + " TEXT UNIQUE NOT NULL, " +
                 LocationEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
                 LocationEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
-                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL " +
+                LocationEntry.COLUMN_COORD_LONG + " REAL NOT NULL, " +
+                LocationEntry.COLUMN_CITY_ID + " INTEGER, " +
+                LocationEntry.COLUMN_ETAG + " TEXT, " +
+                LocationEntry.COLUMN_LAST_MODIFIED + " TEXT, " +
+                LocationEntry.COLUMN_LAST_USED + " INTEGER NOT NULL DEFAULT 0" +
                 " );";
 
         final String SQL_CREATE_WEATHER_TABLE = "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
@@ -79,8 +145,73 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
                 WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
 
+        // One row per 3-hour slot, with every value as a scaled integer.  The UNIQUE constraint
+        // is also the index the per-day queries of a location run on.
+        final String SQL_CREATE_INTRADAY_TABLE = "CREATE TABLE " + IntradayEntry.TABLE_NAME + " (" +
+                IntradayEntry._ID + " INTEGER PRIMARY KEY," +
+                IntradayEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                IntradayEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+                IntradayEntry.COLUMN_SLOT_START + " INTEGER NOT NULL, " +
+                IntradayEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL, " +
+                IntradayEntry.COLUMN_TEMP + " INTEGER NOT NULL, " +
+                IntradayEntry.COLUMN_HUMIDITY + " INTEGER NOT NULL, " +
+                IntradayEntry.COLUMN_PRESSURE + " INTEGER NOT NULL, " +
+                IntradayEntry.COLUMN_WIND_SPEED + " INTEGER NOT NULL, " +
+                IntradayEntry.COLUMN_DEGREES + " INTEGER NOT NULL, " +
+
+                " FOREIGN KEY (" + IntradayEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+
+                // A newer forecast for a slot replaces the one we have
+                " UNIQUE (" + IntradayEntry.COLUMN_LOC_KEY + ", " +
+                IntradayEntry.COLUMN_DATE + ", " +
+                IntradayEntry.COLUMN_SLOT_START + ") ON CONFLICT REPLACE);";
+
+        // One row per stage of a sync, so it can be seen where sync time goes
+        final String SQL_CREATE_SYNC_HISTORY_TABLE = "CREATE TABLE " + SyncHistoryEntry.TABLE_NAME + " (" +
+                SyncHistoryEntry._ID + " INTEGER PRIMARY KEY," +
+                SyncHistoryEntry.COLUMN_SYNC_STARTED + " INTEGER NOT NULL, " +
+                SyncHistoryEntry.COLUMN_APP_VERSION + " INTEGER NOT NULL, " +
+                SyncHistoryEntry.COLUMN_LOCATION_SETTING + " TEXT, " +
+                SyncHistoryEntry.COLUMN_STAGE + " TEXT NOT NULL, " +
+                SyncHistoryEntry.COLUMN_DURATION + " INTEGER NOT NULL, " +
+                SyncHistoryEntry.COLUMN_BYTES + " INTEGER NOT NULL DEFAULT 0, " +
+                SyncHistoryEntry.COLUMN_ROWS + " INTEGER NOT NULL DEFAULT 0" +
+                " );";
+
+        // Every read of the forecast is for one location, over a day or a run of days in date
+        // order.  The UNIQUE constraint above leads with the date, so it only serves the
+        // cleanup of past days across all locations; this one serves the reads.
+        final String SQL_CREATE_WEATHER_LOCATION_DATE_INDEX =
+                "CREATE INDEX " + INDEX_WEATHER_LOCATION_DATE + " ON " +
+                WeatherEntry.TABLE_NAME + " (" +
+                WeatherEntry.COLUMN_LOC_KEY + ", " +
+                WeatherEntry.COLUMN_DATE + ");";
+
+        // The sync lists locations most recently used first to pick which to keep
+        final String SQL_CREATE_LOCATION_LAST_USED_INDEX =
+                "CREATE INDEX " + INDEX_LOCATION_LAST_USED + " ON " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry.COLUMN_LAST_USED + ");";
+
+        // History is trimmed by start time, and summarized stage by stage in duration order.
+        // The second index holds both columns the summary reads, so it never touches the table.
+        final String SQL_CREATE_SYNC_HISTORY_STARTED_INDEX =
+                "CREATE INDEX " + INDEX_SYNC_HISTORY_STARTED + " ON " +
+                SyncHistoryEntry.TABLE_NAME + " (" + SyncHistoryEntry.COLUMN_SYNC_STARTED + ");";
+        final String SQL_CREATE_SYNC_HISTORY_STAGE_DURATION_INDEX =
+                "CREATE INDEX " + INDEX_SYNC_HISTORY_STAGE_DURATION + " ON " +
+                SyncHistoryEntry.TABLE_NAME + " (" +
+                SyncHistoryEntry.COLUMN_STAGE + ", " +
+                SyncHistoryEntry.COLUMN_DURATION + ");";
+
         sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_SYNC_HISTORY_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_INTRADAY_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_LOCATION_DATE_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_LAST_USED_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_SYNC_HISTORY_STARTED_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_SYNC_HISTORY_STAGE_DURATION_INDEX);
     }
 
     @Override
@@ -91,8 +222,11 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
         // It does NOT depend on the version number for your application.
         // If you want to update the schema without wiping data, commenting out the next 2 lines
         // should be your top priority before modifying this method.
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
+        // The tables that point at locations go first, or the foreign keys would stop the drop
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + IntradayEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + SyncHistoryEntry.TABLE_NAME);
         onCreate(sqLiteDatabase);
     }
 }
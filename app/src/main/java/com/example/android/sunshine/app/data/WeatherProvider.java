@@ -17,25 +17,65 @@ package com.example.android.sunshine.app.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Bundle;
+import android.text.format.Time;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 
 public class WeatherProvider extends ContentProvider {
+    private final String LOG_TAG = WeatherProvider.class.getSimpleName();
 
     // The URI Matcher used by this content provider.
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
 
+    // Enough for the forecast list and today's row of a few locations, in each projection
+    // that reads them
+    private static final int QUERY_CACHE_ENTRIES = 16;
+    private static final int QUERY_CACHE_ROWS = 64;
+    private final QueryCache mQueryCache = new QueryCache(QUERY_CACHE_ENTRIES, QUERY_CACHE_ROWS);
+
+    // While a batch is being applied on a thread, the URIs it changed are collected here and
+    // only notified once the whole batch has committed.
+    private final ThreadLocal<LinkedHashSet<Uri>> mBatchNotifyUris =
+            new ThreadLocal<LinkedHashSet<Uri>>();
+    // Likewise the ids of the locations it inserted, which only go into LocationIdCache once
+    // their rows can no longer be rolled back.
+    private final ThreadLocal<HashMap<String, Long>> mBatchLocationIds =
+            new ThreadLocal<HashMap<String, Long>>();
+
     static final int WEATHER = 100;
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
     static final int LOCATION = 300;
+    static final int SYNC_HISTORY = 400;
+    static final int SYNC_HISTORY_STATS = 401;
+    static final int INTRADAY = 500;
+    static final int INTRADAY_WITH_LOCATION_AND_DATE = 502;
 
-    private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+    // The queries are package-private, like the route codes, so that TestQueryPlans checks
+    // the SQL the provider actually runs
+    static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+    static final SQLiteQueryBuilder sIntradayByLocationSettingQueryBuilder;
 
     static{
         sWeatherByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
@@ -49,21 +89,31 @@ public class WeatherProvider extends ContentProvider {
                         "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY +
                         " = " + WeatherContract.LocationEntry.TABLE_NAME +
                         "." + WeatherContract.LocationEntry._ID);
+
+        //intraday INNER JOIN location ON intraday.location_id = location._id
+        sIntradayByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
+        sIntradayByLocationSettingQueryBuilder.setTables(
+                WeatherContract.IntradayEntry.TABLE_NAME + " INNER JOIN " +
+                        WeatherContract.LocationEntry.TABLE_NAME +
+                        " ON " + WeatherContract.IntradayEntry.TABLE_NAME +
+                        "." + WeatherContract.IntradayEntry.COLUMN_LOC_KEY +
+                        " = " + WeatherContract.LocationEntry.TABLE_NAME +
+                        "." + WeatherContract.LocationEntry._ID);
     }
 
     //location.location_setting = ?
-    private static final String sLocationSettingSelection =
+    static final String sLocationSettingSelection =
             WeatherContract.LocationEntry.TABLE_NAME+
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? ";
 
     //location.location_setting = ? AND date >= ?
-    private static final String sLocationSettingWithStartDateSelection =
+    static final String sLocationSettingWithStartDateSelection =
             WeatherContract.LocationEntry.TABLE_NAME+
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
 
     //location.location_setting = ? AND date = ?
-    private static final String sLocationSettingAndDaySelection =
+    static final String sLocationSettingAndDaySelection =
             WeatherContract.LocationEntry.TABLE_NAME +
                     "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
@@ -108,6 +158,90 @@ public class WeatherProvider extends ContentProvider {
         );
     }
 
+    private Cursor getIntradayByLocationSettingAndDate(
+            Uri uri, String[] projection, String sortOrder) {
+        String locationSetting = WeatherContract.IntradayEntry.getLocationSettingFromUri(uri);
+        long date = WeatherContract.IntradayEntry.getDateFromUri(uri);
+
+        return sIntradayByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+                projection,
+                sLocationSettingAndDaySelection,
+                new String[]{locationSetting, Long.toString(date)},
+                null,
+                null,
+                sortOrder == null ? WeatherContract.IntradayEntry.COLUMN_SLOT_START : sortOrder
+        );
+    }
+
+    static final String[] sStageDurationProjection = new String[]{
+            WeatherContract.SyncHistoryEntry.COLUMN_STAGE,
+            WeatherContract.SyncHistoryEntry.COLUMN_DURATION
+    };
+
+    static final String sStageDurationSortOrder =
+            WeatherContract.SyncHistoryEntry.COLUMN_STAGE + ", " +
+                    WeatherContract.SyncHistoryEntry.COLUMN_DURATION;
+
+    private static final String[] sStatsColumns = new String[]{
+            WeatherContract.SyncHistoryEntry.COLUMN_STAGE,
+            WeatherContract.SyncHistoryEntry.COLUMN_COUNT,
+            WeatherContract.SyncHistoryEntry.COLUMN_P50,
+            WeatherContract.SyncHistoryEntry.COLUMN_P95
+    };
+
+    /**
+     * Summarizes the sync history rows matching the selection as one row per stage, holding
+     * the number of samples and the median and 95th percentile of their durations.  SQLite has
+     * no percentile function, so the sorted durations are walked here instead.
+     */
+    private Cursor getSyncHistoryStats(String selection, String[] selectionArgs) {
+        Cursor durationCursor = mOpenHelper.getReadableDatabase().query(
+                WeatherContract.SyncHistoryEntry.TABLE_NAME,
+                sStageDurationProjection,
+                selection,
+                selectionArgs,
+                null,
+                null,
+                sStageDurationSortOrder);
+
+        MatrixCursor statsCursor = new MatrixCursor(sStatsColumns);
+        try {
+            String stage = null;
+            List<Long> durations = new ArrayList<Long>();
+            while (durationCursor.moveToNext()) {
+                String rowStage = durationCursor.getString(0);
+                if (!rowStage.equals(stage)) {
+                    addStatsRow(statsCursor, stage, durations);
+                    stage = rowStage;
+                    durations.clear();
+                }
+                durations.add(durationCursor.getLong(1));
+            }
+            addStatsRow(statsCursor, stage, durations);
+        } finally {
+            durationCursor.close();
+        }
+        return statsCursor;
+    }
+
+    private static void addStatsRow(MatrixCursor statsCursor, String stage,
+                                    List<Long> durations) {
+        if (stage == null) {
+            return;
+        }
+        statsCursor.addRow(new Object[]{stage, durations.size(),
+                percentile(durations, 0.50), percentile(durations, 0.95)});
+    }
+
+    /**
+     * @param sorted values in ascending order, at least one
+     * @return the nearest-rank percentile, so always one of the values
+     */
+    static long percentile(List<Long> sorted, double fraction) {
+        int rank = (int) Math.ceil(fraction * sorted.size());
+        return sorted.get(Math.max(rank, 1) - 1);
+    }
+
     /*
         Students: Here is where you need to create the UriMatcher. This UriMatcher will
         match each URI to the WEATHER, WEATHER_WITH_LOCATION, WEATHER_WITH_LOCATION_AND_DATE,
@@ -130,6 +264,14 @@ public class WeatherProvider extends ContentProvider {
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
 
         matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
+
+        matcher.addURI(authority, WeatherContract.PATH_SYNC_HISTORY, SYNC_HISTORY);
+        matcher.addURI(authority, WeatherContract.PATH_SYNC_HISTORY + "/stats",
+                SYNC_HISTORY_STATS);
+
+        matcher.addURI(authority, WeatherContract.PATH_INTRADAY, INTRADAY);
+        matcher.addURI(authority, WeatherContract.PATH_INTRADAY + "/*/#",
+                INTRADAY_WITH_LOCATION_AND_DATE);
         return matcher;
     }
 
@@ -164,6 +306,12 @@ public class WeatherProvider extends ContentProvider {
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case LOCATION:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case SYNC_HISTORY:
+            case SYNC_HISTORY_STATS:
+                return WeatherContract.SyncHistoryEntry.CONTENT_TYPE;
+            case INTRADAY:
+            case INTRADAY_WITH_LOCATION_AND_DATE:
+                return WeatherContract.IntradayEntry.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -175,16 +323,14 @@ public class WeatherProvider extends ContentProvider {
         // Here's the switch statement that, given a URI, will determine what kind of request it is,
         // and query the database accordingly.
         Cursor retCursor;
-        switch (sUriMatcher.match(uri)) {
+        final int match = sUriMatcher.match(uri);
+        switch (match) {
             // "weather/*/*"
             case WEATHER_WITH_LOCATION_AND_DATE:
-            {
-                retCursor = getWeatherByLocationSettingAndDate(uri, projection, sortOrder);
-                break;
-            }
             // "weather/*"
             case WEATHER_WITH_LOCATION: {
-                retCursor = getWeatherByLocationSetting(uri, projection, sortOrder);
+                retCursor = queryWeatherCached(match, uri, projection, selection, selectionArgs,
+                        sortOrder);
                 break;
             }
             // "weather"
@@ -213,6 +359,42 @@ public class WeatherProvider extends ContentProvider {
                 );
                 break;
             }
+            // "sync_history"
+            case SYNC_HISTORY: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.SyncHistoryEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
+            // "sync_history/stats"
+            case SYNC_HISTORY_STATS: {
+                retCursor = getSyncHistoryStats(selection, selectionArgs);
+                break;
+            }
+            // "intraday/*/#"
+            case INTRADAY_WITH_LOCATION_AND_DATE: {
+                retCursor = getIntradayByLocationSettingAndDate(uri, projection, sortOrder);
+                break;
+            }
+            // "intraday"
+            case INTRADAY: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.IntradayEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
@@ -221,6 +403,30 @@ public class WeatherProvider extends ContentProvider {
         return retCursor;
     }
 
+    /**
+     * Answers the per-location weather routes from the query cache where it can.  A query on
+     * the thread of an open transaction could see rows that never commit, so it isn't kept.
+     */
+    private Cursor queryWeatherCached(int match, Uri uri, String[] projection, String selection,
+                                      String[] selectionArgs, String sortOrder) {
+        List<Object> key = QueryCache.getKey(match, uri, projection, selection, selectionArgs,
+                sortOrder);
+        Cursor cursor = mQueryCache.get(key);
+        if (cursor != null) {
+            return cursor;
+        }
+        int generation = mQueryCache.getGeneration();
+        if (match == WEATHER_WITH_LOCATION_AND_DATE) {
+            cursor = getWeatherByLocationSettingAndDate(uri, projection, sortOrder);
+        } else {
+            cursor = getWeatherByLocationSetting(uri, projection, sortOrder);
+        }
+        if (mOpenHelper.getReadableDatabase().inTransaction()) {
+            return cursor;
+        }
+        return mQueryCache.put(key, uri, cursor, generation);
+    }
+
     /*
         Student: Add the ability to insert Locations to the implementation of this function.
      */
@@ -238,12 +444,38 @@ public class WeatherProvider extends ContentProvider {
                     returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
-                break;
+                ChangedDays changedDays = new ChangedDays();
+                changedDays.add(values);
+                notifyWeatherChange(db, changedDays);
+                return returnUri;
             }
             case LOCATION: {
-                long _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
-                if ( _id > 0 )
+                long _id = WeatherContract.LocationEntry.isInsertOrIgnore(uri)
+                        ? insertOrIgnoreLocation(db, values)
+                        : db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+                if ( _id > 0 ) {
                     returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
+                    cacheLocationId(values.getAsString(
+                            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING), _id);
+                } else
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
+                break;
+            }
+            case SYNC_HISTORY: {
+                long _id = db.insert(WeatherContract.SyncHistoryEntry.TABLE_NAME, null, values);
+                if ( _id > 0 )
+                    returnUri = ContentUris.withAppendedId(
+                            WeatherContract.SyncHistoryEntry.CONTENT_URI, _id);
+                else
+                    throw new android.database.SQLException("Failed to insert row into " + uri);
+                break;
+            }
+            case INTRADAY: {
+                normalizeDate(values);
+                long _id = db.insert(WeatherContract.IntradayEntry.TABLE_NAME, null, values);
+                if ( _id > 0 )
+                    returnUri = ContentUris.withAppendedId(
+                            WeatherContract.IntradayEntry.CONTENT_URI, _id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
                 break;
@@ -251,7 +483,7 @@ public class WeatherProvider extends ContentProvider {
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
         return returnUri;
     }
 
@@ -263,24 +495,65 @@ public class WeatherProvider extends ContentProvider {
         // this makes delete all rows return the number of rows deleted
         if ( null == selection ) selection = "1";
         switch (match) {
-            case WEATHER:
+            case WEATHER: {
+                ChangedDays changedDays = queryChangedDays(db, selection, selectionArgs);
                 rowsDeleted = db.delete(
                         WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
-                break;
+                if (rowsDeleted != 0) {
+                    notifyWeatherChange(db, changedDays);
+                }
+                return rowsDeleted;
+            }
             case LOCATION:
                 rowsDeleted = db.delete(
                         WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                if (rowsDeleted != 0) {
+                    LocationIdCache.clear();
+                }
+                break;
+            case SYNC_HISTORY:
+                rowsDeleted = db.delete(
+                        WeatherContract.SyncHistoryEntry.TABLE_NAME, selection, selectionArgs);
+                break;
+            case INTRADAY:
+                rowsDeleted = db.delete(
+                        WeatherContract.IntradayEntry.TABLE_NAME, selection, selectionArgs);
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         // Because a null deletes all rows
         if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return rowsDeleted;
     }
 
+    /**
+     * Inserts the location unless its location setting is already stored.
+     *
+     * @return the row ID of the new row or of the one already stored
+     */
+    private static long insertOrIgnoreLocation(SQLiteDatabase db, ContentValues values) {
+        long _id = db.insertWithOnConflict(WeatherContract.LocationEntry.TABLE_NAME, null,
+                values, SQLiteDatabase.CONFLICT_IGNORE);
+        if (_id != -1) {
+            return _id;
+        }
+        // Ignored, so the row is there
+        Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry._ID},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{values.getAsString(
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING)},
+                null, null, null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        } finally {
+            cursor.close();
+        }
+    }
+
     private void normalizeDate(ContentValues values) {
         // normalize the date value
         if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
@@ -289,6 +562,14 @@ public class WeatherProvider extends ContentProvider {
         }
     }
 
+    private void normalizeDate(ContentValues values, Time time) {
+        if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
+            long dateValue = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+            values.put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                    WeatherContract.normalizeDate(time, dateValue));
+        }
+    }
+
     @Override
     public int update(
             Uri uri, ContentValues values, String selection, String[] selectionArgs) {
@@ -297,20 +578,37 @@ public class WeatherProvider extends ContentProvider {
         int rowsUpdated;
 
         switch (match) {
-            case WEATHER:
+            case WEATHER: {
                 normalizeDate(values);
+                ChangedDays changedDays;
+                if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_LOC_KEY)
+                        || values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
+                    // The rows move to days we can't tell from here
+                    changedDays = new ChangedDays();
+                    changedDays.mAll = true;
+                } else {
+                    changedDays = queryChangedDays(db, selection, selectionArgs);
+                }
                 rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values, selection,
                         selectionArgs);
-                break;
+                if (rowsUpdated != 0) {
+                    notifyWeatherChange(db, changedDays);
+                }
+                return rowsUpdated;
+            }
             case LOCATION:
                 rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
                         selectionArgs);
+                if (rowsUpdated != 0 && values.containsKey(
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING)) {
+                    LocationIdCache.clear();
+                }
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
         if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
         return rowsUpdated;
     }
@@ -323,25 +621,353 @@ public class WeatherProvider extends ContentProvider {
             case WEATHER:
                 db.beginTransaction();
                 int returnCount = 0;
+                try {
+                    returnCount = insertWeatherValues(db, values);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                ChangedDays changedDays = new ChangedDays();
+                for (ContentValues value : values) {
+                    changedDays.add(value);
+                }
+                notifyWeatherChange(db, changedDays);
+                return returnCount;
+            case SYNC_HISTORY:
+                // Every stage of a sync goes in at once, in one transaction
+                db.beginTransaction();
+                int historyCount = 0;
+                try {
+                    for (ContentValues value : values) {
+                        long _id = db.insert(
+                                WeatherContract.SyncHistoryEntry.TABLE_NAME, null, value);
+                        if (_id != -1) {
+                            historyCount++;
+                        }
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                notifyChange(uri);
+                return historyCount;
+            case INTRADAY:
+                db.beginTransaction();
+                int slotCount = 0;
                 try {
                     for (ContentValues value : values) {
                         normalizeDate(value);
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
+                        long _id = db.insert(
+                                WeatherContract.IntradayEntry.TABLE_NAME, null, value);
                         if (_id != -1) {
-                            returnCount++;
+                            slotCount++;
                         }
                     }
                     db.setTransactionSuccessful();
                 } finally {
                     db.endTransaction();
                 }
-                getContext().getContentResolver().notifyChange(uri, null);
-                return returnCount;
+                notifyChange(uri);
+                return slotCount;
             default:
                 return super.bulkInsert(uri, values);
         }
     }
 
+    /**
+     * Applies the whole batch in a single transaction, so observers never see half of a sync.
+     * Notifications are held back until the transaction commits and each changed URI is then
+     * notified once, however many operations touched it.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        return applyBatch(operations, null);
+    }
+
+    /**
+     * Answers WeatherRows.applyWith, which has the rows of a forecast inserted in the same
+     * transaction as the batch that goes with them, and METHOD_QUERY_CACHE_STATS.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (WeatherContract.WeatherEntry.METHOD_QUERY_CACHE_STATS.equals(method)) {
+            Bundle stats = new Bundle();
+            stats.putLong(WeatherContract.WeatherEntry.KEY_CACHE_HITS,
+                    mQueryCache.getHitCount());
+            stats.putLong(WeatherContract.WeatherEntry.KEY_CACHE_MISSES,
+                    mQueryCache.getMissCount());
+            return stats;
+        }
+        if (!WeatherContract.WeatherEntry.METHOD_APPLY_ROWS.equals(method)) {
+            return super.call(method, arg, extras);
+        }
+        ArrayList<ContentProviderOperation> operations =
+                extras.getParcelableArrayList(WeatherRows.KEY_OPERATIONS);
+        Bundle result = new Bundle();
+        try {
+            result.putParcelableArray(WeatherRows.KEY_RESULTS,
+                    applyBatch(operations, WeatherRows.fromExtras(extras)));
+        } catch (OperationApplicationException e) {
+            // call() can't throw it, so WeatherRows rethrows it on the other side
+            result.putString(WeatherRows.KEY_ERROR, e.getMessage());
+        }
+        return result;
+    }
+
+    /**
+     * @param rows weather rows to insert once the operations have been applied, or null
+     */
+    private ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations,
+                                               WeatherRows rows)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        LinkedHashSet<Uri> notifyUris = new LinkedHashSet<Uri>();
+        mBatchNotifyUris.set(notifyUris);
+        HashMap<String, Long> locationIds = new HashMap<String, Long>();
+        mBatchLocationIds.set(locationIds);
+        // Read before the transaction, so that the ids are dropped if anything clears the
+        // cache between here and putting them, this batch included
+        int locationIdGeneration = LocationIdCache.getGeneration();
+        boolean successful = false;
+        ContentProviderResult[] results;
+        db.beginTransaction();
+        try {
+            results = new ContentProviderResult[operations.size()];
+            for (int i = 0; i < results.length; i++) {
+                // A caller interrupted part way through, such as a canceled sync, gets its
+                // batch rolled back instead of committed.  Calls from other processes come in
+                // on binder threads, which are never interrupted.
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new OperationApplicationException(
+                            "Interrupted before operation " + i, i);
+                }
+                results[i] = operations.get(i).apply(this, results, i);
+            }
+            if (rows != null && rows.size() > 0) {
+                long locationId = rows.getLocationId(results);
+                insertWeatherRows(db, rows, locationId);
+                ChangedDays changedDays = new ChangedDays();
+                Time time = new Time();
+                for (int i = 0; i < rows.size(); i++) {
+                    changedDays.add(locationId,
+                            WeatherContract.normalizeDate(time, rows.getDate(i)));
+                }
+                notifyWeatherChange(db, changedDays);
+            }
+            db.setTransactionSuccessful();
+            successful = true;
+        } finally {
+            db.endTransaction();
+            mBatchNotifyUris.remove();
+            mBatchLocationIds.remove();
+        }
+        if (successful) {
+            for (Map.Entry<String, Long> locationId : locationIds.entrySet()) {
+                LocationIdCache.put(locationId.getKey(), locationId.getValue(),
+                        locationIdGeneration);
+            }
+            for (Uri uri : notifyUris) {
+                dispatchChange(uri);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Inserts the rows through one compiled statement, binding their values as they are instead
+     * of building an insert out of ContentValues for each.
+     */
+    private static void insertWeatherRows(SQLiteDatabase db, WeatherRows rows, long locationId) {
+        SQLiteStatement insert = db.compileStatement(WeatherRows.INSERT_SQL);
+        try {
+            Time time = new Time();
+            for (int i = 0; i < rows.size(); i++) {
+                rows.bind(insert, i, locationId, time);
+                insert.executeInsert();
+            }
+        } finally {
+            insert.close();
+        }
+    }
+
+    /**
+     * Inserts the rows through one compiled statement, binding each row's values by position.
+     * db.insert() would build the SQL out of the keys of every row and compile it again.
+     *
+     * @return the number of rows inserted
+     */
+    private int insertWeatherValues(SQLiteDatabase db, ContentValues[] values) {
+        int count = 0;
+        SQLiteStatement insert = db.compileStatement(WeatherRows.INSERT_SQL);
+        try {
+            Time time = new Time();
+            for (ContentValues value : values) {
+                normalizeDate(value, time);
+                long _id;
+                if (WeatherRows.bind(insert, value)) {
+                    try {
+                        _id = insert.executeInsert();
+                    } catch (SQLException e) {
+                        // Skipped and not counted, as db.insert() would
+                        Log.e(LOG_TAG, "Error inserting " + value, e);
+                        _id = -1;
+                    }
+                } else {
+                    // Not the usual columns, so it can't use the statement
+                    _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
+                }
+                if (_id != -1) {
+                    count++;
+                }
+            }
+        } finally {
+            insert.close();
+        }
+        return count;
+    }
+
+    /**
+     * The locations a write to the weather table touched, and the day touched for each location
+     * where there was only the one.  Notifying just those URIs leaves the loaders of every
+     * other location alone, where notifying CONTENT_URI would have them all requery.
+     */
+    private static class ChangedDays {
+        // Location row ID to the day that changed, or to null once several days have
+        final LinkedHashMap<Long, Long> mDays = new LinkedHashMap<Long, Long>();
+        // Set when the rows can't be placed, so that every weather URI is notified
+        boolean mAll;
+
+        void add(long locationId, long date) {
+            if (!mDays.containsKey(locationId)) {
+                mDays.put(locationId, date);
+            } else {
+                Long day = mDays.get(locationId);
+                if (day != null && day != date) {
+                    mDays.put(locationId, null);
+                }
+            }
+        }
+
+        void add(ContentValues values) {
+            Long locationId = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+            Long date = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+            if (locationId == null || date == null) {
+                mAll = true;
+            } else {
+                add(locationId, date);
+            }
+        }
+    }
+
+    /**
+     * Works out which locations and days of the weather table the selection matches, ahead of
+     * updating or deleting them.
+     */
+    private static ChangedDays queryChangedDays(SQLiteDatabase db, String selection,
+                                                String[] selectionArgs) {
+        ChangedDays changedDays = new ChangedDays();
+        Cursor cursor = db.query(WeatherContract.WeatherEntry.TABLE_NAME,
+                new String[]{WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+                        "MIN(" + WeatherContract.WeatherEntry.COLUMN_DATE + ")",
+                        "MAX(" + WeatherContract.WeatherEntry.COLUMN_DATE + ")"},
+                selection,
+                selectionArgs,
+                WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+                null,
+                null);
+        try {
+            while (cursor.moveToNext()) {
+                changedDays.add(cursor.getLong(0), cursor.getLong(1));
+                changedDays.add(cursor.getLong(0), cursor.getLong(2));
+            }
+        } finally {
+            cursor.close();
+        }
+        return changedDays;
+    }
+
+    /**
+     * Notifies weather/[location_setting]/[date] for a location where one day changed, and
+     * weather/[location_setting] for one where several did.
+     */
+    private void notifyWeatherChange(SQLiteDatabase db, ChangedDays changedDays) {
+        if (changedDays.mAll) {
+            notifyChange(WeatherContract.WeatherEntry.CONTENT_URI);
+            return;
+        }
+        if (changedDays.mDays.isEmpty()) {
+            return;
+        }
+
+        StringBuilder selection = new StringBuilder(WeatherContract.LocationEntry._ID)
+                .append(" IN (");
+        String[] selectionArgs = new String[changedDays.mDays.size()];
+        int i = 0;
+        for (Long locationId : changedDays.mDays.keySet()) {
+            selection.append(i == 0 ? "?" : ", ?");
+            selectionArgs[i++] = Long.toString(locationId);
+        }
+        selection.append(")");
+
+        HashMap<Long, String> locationSettings = new HashMap<Long, String>();
+        Cursor cursor = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                new String[]{WeatherContract.LocationEntry._ID,
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+                selection.toString(),
+                selectionArgs,
+                null,
+                null,
+                null);
+        try {
+            while (cursor.moveToNext()) {
+                locationSettings.put(cursor.getLong(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        for (Map.Entry<Long, Long> changedDay : changedDays.mDays.entrySet()) {
+            String locationSetting = locationSettings.get(changedDay.getKey());
+            if (locationSetting == null) {
+                // No location to name the URI after, so whoever is watching any of it hears
+                notifyChange(WeatherContract.WeatherEntry.CONTENT_URI);
+                continue;
+            }
+            notifyChange(changedDay.getValue() == null
+                    ? WeatherContract.WeatherEntry.buildWeatherLocation(locationSetting)
+                    : WeatherContract.WeatherEntry.buildWeatherLocationWithDate(
+                            locationSetting, changedDay.getValue()));
+        }
+    }
+
+    private void cacheLocationId(String locationSetting, long id) {
+        HashMap<String, Long> batchLocationIds = mBatchLocationIds.get();
+        if (batchLocationIds != null) {
+            batchLocationIds.put(locationSetting, id);
+        } else {
+            LocationIdCache.put(locationSetting, id);
+        }
+    }
+
+    private void notifyChange(Uri uri) {
+        LinkedHashSet<Uri> batchNotifyUris = mBatchNotifyUris.get();
+        if (batchNotifyUris != null) {
+            batchNotifyUris.add(uri);
+        } else {
+            dispatchChange(uri);
+        }
+    }
+
+    /**
+     * Called once the change behind the URI has committed, so that no query run after it can
+     * be answered from before it.
+     */
+    private void dispatchChange(Uri uri) {
+        mQueryCache.invalidate(uri);
+        getContext().getContentResolver().notifyChange(uri, null);
+    }
+
     // You do not need to call this method. This is a method specifically to assist the testing
     // framework in running smoothly. You can read more at:
     // http://developer.android.com/reference/android/content/ContentProvider.html#shutdown()
@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.annotation.TargetApi;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Parcelable;
+import android.os.RemoteException;
+import android.text.TextUtils;
+import android.text.format.Time;
+
+import java.util.ArrayList;
+
+/**
+ * A batch of weather rows for one location, held as parallel primitive arrays.
+ *
+ * Rows go to the provider through ContentResolver.call(), which within our process hands the
+ * arrays over as they are, and the provider binds them straight to a compiled insert.  Unlike
+ * ContentValues no value is boxed on the way in, and clear() lets the buffer be refilled
+ * without allocating again.
+ */
+public class WeatherRows {
+
+    // Bundle keys of the call the provider answers
+    static final String KEY_OPERATIONS = "operations";
+    static final String KEY_SIZE = "size";
+    static final String KEY_LOCATION_ID = "location_id";
+    static final String KEY_LOCATION_BACK_REFERENCE = "location_back_reference";
+    static final String KEY_DATES = "dates";
+    static final String KEY_WEATHER_IDS = "weather_ids";
+    static final String KEY_SHORT_DESCS = "short_descs";
+    static final String KEY_MIN_TEMPS = "min_temps";
+    static final String KEY_MAX_TEMPS = "max_temps";
+    static final String KEY_HUMIDITIES = "humidities";
+    static final String KEY_PRESSURES = "pressures";
+    static final String KEY_WIND_SPEEDS = "wind_speeds";
+    static final String KEY_DEGREES = "degrees";
+    static final String KEY_RESULTS = "results";
+    static final String KEY_ERROR = "error";
+
+    // The columns bind() fills, in order
+    private static final String[] INSERT_COLUMNS = new String[]{
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES
+    };
+
+    static final String INSERT_SQL = "INSERT INTO " + WeatherContract.WeatherEntry.TABLE_NAME +
+            " (" + TextUtils.join(", ", INSERT_COLUMNS) +
+            ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final int NO_BACK_REFERENCE = -1;
+
+    private int mSize;
+    private long mLocationId;
+    private int mLocationBackReference = NO_BACK_REFERENCE;
+    private long[] mDates;
+    private int[] mWeatherIds;
+    private String[] mShortDescs;
+    private double[] mMinTemps;
+    private double[] mMaxTemps;
+    private double[] mHumidities;
+    private double[] mPressures;
+    private double[] mWindSpeeds;
+    private double[] mDegrees;
+
+    public WeatherRows(int capacity) {
+        allocate(Math.max(capacity, 1));
+    }
+
+    // For fromExtras, which brings its own arrays
+    private WeatherRows() {
+    }
+
+    /**
+     * @param locationId the row ID of the location all of the rows belong to
+     */
+    public void setLocationId(long locationId) {
+        mLocationId = locationId;
+        mLocationBackReference = NO_BACK_REFERENCE;
+    }
+
+    /**
+     * Takes the location of the rows from the URI returned by an operation applied along with
+     * them, like ContentProviderOperation.Builder.withValueBackReference does.
+     */
+    public void setLocationBackReference(int operationIndex) {
+        mLocationBackReference = operationIndex;
+    }
+
+    public void add(long date, int weatherId, String shortDesc, double minTemp, double maxTemp,
+                    double humidity, double pressure, double windSpeed, double degrees) {
+        if (mSize == mDates.length) {
+            grow();
+        }
+        mDates[mSize] = date;
+        mWeatherIds[mSize] = weatherId;
+        mShortDescs[mSize] = shortDesc;
+        mMinTemps[mSize] = minTemp;
+        mMaxTemps[mSize] = maxTemp;
+        mHumidities[mSize] = humidity;
+        mPressures[mSize] = pressure;
+        mWindSpeeds[mSize] = windSpeed;
+        mDegrees[mSize] = degrees;
+        mSize++;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Empties the buffer but keeps its arrays for the next batch.
+     */
+    public void clear() {
+        for (int i = 0; i < mSize; i++) {
+            mShortDescs[i] = null;
+        }
+        mSize = 0;
+        mLocationId = 0;
+        mLocationBackReference = NO_BACK_REFERENCE;
+    }
+
+    /**
+     * Applies the operations and then inserts the rows, all in one transaction, with change
+     * notifications held back until it commits as applyBatch does.  Versions of Android
+     * without ContentResolver.call() get the rows inserted through applyBatch instead.
+     *
+     * @return the results of the operations; the rows have none of their own
+     */
+    @TargetApi(11)
+    public ContentProviderResult[] applyWith(ContentResolver resolver,
+                                             ArrayList<ContentProviderOperation> operations)
+            throws RemoteException, OperationApplicationException {
+        if (mSize == 0) {
+            return resolver.applyBatch(WeatherContract.CONTENT_AUTHORITY, operations);
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return applyAsOperations(resolver, operations);
+        }
+
+        Bundle result = resolver.call(WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.WeatherEntry.METHOD_APPLY_ROWS, null, toExtras(operations));
+        if (result.containsKey(KEY_ERROR)) {
+            throw new OperationApplicationException(result.getString(KEY_ERROR));
+        }
+        // Copied over element by element in case the array was parceled on the way
+        Parcelable[] parcelables = result.getParcelableArray(KEY_RESULTS);
+        ContentProviderResult[] results = new ContentProviderResult[parcelables.length];
+        for (int i = 0; i < results.length; i++) {
+            results[i] = (ContentProviderResult) parcelables[i];
+        }
+        return results;
+    }
+
+    private ContentProviderResult[] applyAsOperations(
+            ContentResolver resolver, ArrayList<ContentProviderOperation> operations)
+            throws RemoteException, OperationApplicationException {
+        ArrayList<ContentProviderOperation> allOperations =
+                new ArrayList<ContentProviderOperation>(operations.size() + mSize);
+        allOperations.addAll(operations);
+        for (int i = 0; i < mSize; i++) {
+            ContentProviderOperation.Builder insert = ContentProviderOperation
+                    .newInsert(WeatherContract.WeatherEntry.CONTENT_URI)
+                    .withValues(toContentValues(i));
+            if (mLocationBackReference != NO_BACK_REFERENCE) {
+                insert.withValueBackReference(WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+                        mLocationBackReference);
+            } else {
+                insert.withValue(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, mLocationId);
+            }
+            allOperations.add(insert.build());
+        }
+        ContentProviderResult[] allResults =
+                resolver.applyBatch(WeatherContract.CONTENT_AUTHORITY, allOperations);
+        ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+        System.arraycopy(allResults, 0, results, 0, results.length);
+        return results;
+    }
+
+    private ContentValues toContentValues(int row) {
+        ContentValues weatherValues = new ContentValues();
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, mDates[row]);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, mWeatherIds[row]);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, mShortDescs[row]);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, mMinTemps[row]);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, mMaxTemps[row]);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, mHumidities[row]);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, mPressures[row]);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, mWindSpeeds[row]);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, mDegrees[row]);
+        return weatherValues;
+    }
+
+    Bundle toExtras(ArrayList<ContentProviderOperation> operations) {
+        Bundle extras = new Bundle();
+        extras.putParcelableArrayList(KEY_OPERATIONS, operations);
+        extras.putInt(KEY_SIZE, mSize);
+        extras.putLong(KEY_LOCATION_ID, mLocationId);
+        extras.putInt(KEY_LOCATION_BACK_REFERENCE, mLocationBackReference);
+        extras.putLongArray(KEY_DATES, mDates);
+        extras.putIntArray(KEY_WEATHER_IDS, mWeatherIds);
+        extras.putStringArray(KEY_SHORT_DESCS, mShortDescs);
+        extras.putDoubleArray(KEY_MIN_TEMPS, mMinTemps);
+        extras.putDoubleArray(KEY_MAX_TEMPS, mMaxTemps);
+        extras.putDoubleArray(KEY_HUMIDITIES, mHumidities);
+        extras.putDoubleArray(KEY_PRESSURES, mPressures);
+        extras.putDoubleArray(KEY_WIND_SPEEDS, mWindSpeeds);
+        extras.putDoubleArray(KEY_DEGREES, mDegrees);
+        return extras;
+    }
+
+    /**
+     * @return the rows in the extras, sharing their arrays
+     */
+    static WeatherRows fromExtras(Bundle extras) {
+        WeatherRows rows = new WeatherRows();
+        rows.mSize = extras.getInt(KEY_SIZE);
+        rows.mLocationId = extras.getLong(KEY_LOCATION_ID);
+        rows.mLocationBackReference = extras.getInt(KEY_LOCATION_BACK_REFERENCE);
+        rows.mDates = extras.getLongArray(KEY_DATES);
+        rows.mWeatherIds = extras.getIntArray(KEY_WEATHER_IDS);
+        rows.mShortDescs = extras.getStringArray(KEY_SHORT_DESCS);
+        rows.mMinTemps = extras.getDoubleArray(KEY_MIN_TEMPS);
+        rows.mMaxTemps = extras.getDoubleArray(KEY_MAX_TEMPS);
+        rows.mHumidities = extras.getDoubleArray(KEY_HUMIDITIES);
+        rows.mPressures = extras.getDoubleArray(KEY_PRESSURES);
+        rows.mWindSpeeds = extras.getDoubleArray(KEY_WIND_SPEEDS);
+        rows.mDegrees = extras.getDoubleArray(KEY_DEGREES);
+        return rows;
+    }
+
+    /**
+     * @return the date of the row as it was added, before it is normalized
+     */
+    long getDate(int row) {
+        return mDates[row];
+    }
+
+    /**
+     * @param results the results of the operations applied ahead of the rows
+     * @return the row ID of the location the rows belong to
+     */
+    long getLocationId(ContentProviderResult[] results) {
+        if (mLocationBackReference == NO_BACK_REFERENCE) {
+            return mLocationId;
+        }
+        return ContentUris.parseId(results[mLocationBackReference].uri);
+    }
+
+    /**
+     * Binds a row to a statement compiled from INSERT_SQL.
+     *
+     * @param time reused to normalize the date, so that a batch needs only the one
+     */
+    void bind(SQLiteStatement insert, int row, long locationId, Time time) {
+        insert.bindLong(1, locationId);
+        insert.bindLong(2, WeatherContract.normalizeDate(time, mDates[row]));
+        insert.bindLong(3, mWeatherIds[row]);
+        insert.bindString(4, mShortDescs[row]);
+        insert.bindDouble(5, mMinTemps[row]);
+        insert.bindDouble(6, mMaxTemps[row]);
+        insert.bindDouble(7, mHumidities[row]);
+        insert.bindDouble(8, mPressures[row]);
+        insert.bindDouble(9, mWindSpeeds[row]);
+        insert.bindDouble(10, mDegrees[row]);
+    }
+
+    /**
+     * Binds a row given as ContentValues to a statement compiled from INSERT_SQL, each value
+     * as the type it was put in as.
+     *
+     * @return false, with nothing bound, if the values don't hold exactly the columns of
+     * INSERT_SQL, in which case the row has to be inserted some other way
+     */
+    static boolean bind(SQLiteStatement insert, ContentValues values) {
+        if (values.size() != INSERT_COLUMNS.length) {
+            return false;
+        }
+        for (String column : INSERT_COLUMNS) {
+            if (!values.containsKey(column)) {
+                return false;
+            }
+        }
+        for (int i = 0; i < INSERT_COLUMNS.length; i++) {
+            DatabaseUtils.bindObjectToProgram(insert, i + 1, values.get(INSERT_COLUMNS[i]));
+        }
+        return true;
+    }
+
+    private void allocate(int capacity) {
+        mDates = new long[capacity];
+        mWeatherIds = new int[capacity];
+        mShortDescs = new String[capacity];
+        mMinTemps = new double[capacity];
+        mMaxTemps = new double[capacity];
+        mHumidities = new double[capacity];
+        mPressures = new double[capacity];
+        mWindSpeeds = new double[capacity];
+        mDegrees = new double[capacity];
+    }
+
+    private void grow() {
+        int capacity = mDates.length * 2;
+        long[] dates = mDates;
+        int[] weatherIds = mWeatherIds;
+        String[] shortDescs = mShortDescs;
+        double[] minTemps = mMinTemps;
+        double[] maxTemps = mMaxTemps;
+        double[] humidities = mHumidities;
+        double[] pressures = mPressures;
+        double[] windSpeeds = mWindSpeeds;
+        double[] degrees = mDegrees;
+        allocate(capacity);
+        System.arraycopy(dates, 0, mDates, 0, mSize);
+        System.arraycopy(weatherIds, 0, mWeatherIds, 0, mSize);
+        System.arraycopy(shortDescs, 0, mShortDescs, 0, mSize);
+        System.arraycopy(minTemps, 0, mMinTemps, 0, mSize);
+        System.arraycopy(maxTemps, 0, mMaxTemps, 0, mSize);
+        System.arraycopy(humidities, 0, mHumidities, 0, mSize);
+        System.arraycopy(pressures, 0, mPressures, 0, mSize);
+        System.arraycopy(windSpeeds, 0, mWindSpeeds, 0, mSize);
+        System.arraycopy(degrees, 0, mDegrees, 0, mSize);
+    }
+}
@@ -0,0 +1,16 @@
+package com.example.android.sunshine.app.sync;
+
+/**
+ * Where the sync's scheduling decisions get the time from, so tests can supply their own.
+ */
+public interface Clock {
+
+    Clock SYSTEM = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    long currentTimeMillis();
+}
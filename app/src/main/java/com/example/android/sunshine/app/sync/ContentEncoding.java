@@ -0,0 +1,98 @@
+package com.example.android.sunshine.app.sync;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.net.HttpURLConnection;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Helpers to ask the server for a compressed response and to decompress it as it streams in,
+ * so the parser reads plain JSON while far fewer bytes cross the radio.
+ *
+ * Once we set Accept-Encoding ourselves HttpURLConnection no longer decompresses for us, which
+ * is why every response has to come back through getDecodedInputStream.
+ */
+public class ContentEncoding {
+
+    static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+
+    static final String ENCODING_GZIP = "gzip";
+    static final String ENCODING_DEFLATE = "deflate";
+    static final String ENCODING_IDENTITY = "identity";
+
+    private ContentEncoding() {
+    }
+
+    /**
+     * Tells the server we can take gzip or deflate.  Call before connecting.
+     */
+    public static void acceptCompressed(HttpURLConnection urlConnection) {
+        urlConnection.setRequestProperty(HEADER_ACCEPT_ENCODING,
+                ENCODING_GZIP + ", " + ENCODING_DEFLATE);
+    }
+
+    /**
+     * @return the response body, decompressed on the fly according to its Content-Encoding,
+     * or null if the connection has no body.
+     */
+    public static InputStream getDecodedInputStream(HttpURLConnection urlConnection)
+            throws IOException {
+        return getDecodedInputStream(urlConnection, urlConnection.getInputStream());
+    }
+
+    /**
+     * Like getDecodedInputStream(HttpURLConnection), for callers that wrap the raw response
+     * stream themselves first.
+     */
+    public static InputStream getDecodedInputStream(HttpURLConnection urlConnection,
+                                                    InputStream inputStream) throws IOException {
+        if (inputStream == null) {
+            return null;
+        }
+        return decode(new BufferedInputStream(inputStream), urlConnection.getContentEncoding());
+    }
+
+    static InputStream decode(InputStream in, String contentEncoding) throws IOException {
+        if (contentEncoding == null) {
+            return in;
+        }
+        String encoding = contentEncoding.trim();
+        if (encoding.equalsIgnoreCase(ENCODING_GZIP) || encoding.equalsIgnoreCase("x-gzip")) {
+            return new GZIPInputStream(in);
+        } else if (encoding.equalsIgnoreCase(ENCODING_DEFLATE)) {
+            return inflate(in);
+        } else if (encoding.length() == 0 || encoding.equalsIgnoreCase(ENCODING_IDENTITY)) {
+            return in;
+        }
+        throw new IOException("Unsupported Content-Encoding: " + contentEncoding);
+    }
+
+    /**
+     * HTTP "deflate" is meant to be zlib-wrapped, but plenty of servers send a raw deflate
+     * stream instead.  Peek at the first two bytes to tell the two apart.
+     */
+    private static InputStream inflate(InputStream in) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(in, 2);
+        byte[] header = new byte[2];
+        int read = 0;
+        while (read < header.length) {
+            int count = pushback.read(header, read, header.length - read);
+            if (count == -1) {
+                break;
+            }
+            read += count;
+        }
+        if (read > 0) {
+            pushback.unread(header, 0, read);
+        }
+
+        int cmf = header[0] & 0xff;
+        int flg = header[1] & 0xff;
+        boolean zlibWrapped = read == 2 && (cmf & 0x0f) == 8 && ((cmf << 8) | flg) % 31 == 0;
+        return new InflaterInputStream(pushback, new Inflater(!zlibWrapped));
+    }
+}
@@ -0,0 +1,31 @@
+package com.example.android.sunshine.app.sync;
+
+/**
+ * One day of forecast as a WeatherSource returns it, in metric units.
+ */
+public class DayForecast {
+    // Start of the day, normalized to UTC like WeatherContract.normalizeDate
+    public final long date;
+    public final double pressure;
+    public final int humidity;
+    public final double windSpeed;
+    public final double windDirection;
+    public final double high;
+    public final double low;
+    public final String description;
+    public final int weatherId;
+
+    public DayForecast(long date, double pressure, int humidity, double windSpeed,
+                       double windDirection, double high, double low, String description,
+                       int weatherId) {
+        this.date = date;
+        this.pressure = pressure;
+        this.humidity = humidity;
+        this.windSpeed = windSpeed;
+        this.windDirection = windDirection;
+        this.high = high;
+        this.low = low;
+        this.description = description;
+        this.weatherId = weatherId;
+    }
+}
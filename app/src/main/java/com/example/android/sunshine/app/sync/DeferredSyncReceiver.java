@@ -0,0 +1,38 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.BroadcastReceiver;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+/**
+ * Runs the sync SyncPolicy held back once the device is on an unmetered network or a charger.
+ *
+ * It is only enabled while something is waiting, so connectivity and power changes don't start
+ * the app the rest of the time.  However many syncs were held back, they are caught up by the
+ * one full sync this requests.
+ */
+public class DeferredSyncReceiver extends BroadcastReceiver {
+    public final String LOG_TAG = DeferredSyncReceiver.class.getSimpleName();
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        if (new SyncPolicy(SyncPolicy.getDeviceState(context)).isUnrestricted()) {
+            Log.d(LOG_TAG, "Conditions improved, running the deferred sync");
+            SunshineSyncAdapter.runDeferredSync(context);
+        }
+    }
+
+    /**
+     * Turns listening for better conditions on or off.
+     */
+    static void setEnabled(Context context, boolean enabled) {
+        context.getPackageManager().setComponentEnabledSetting(
+                new ComponentName(context, DeferredSyncReceiver.class),
+                enabled ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED
+                        : PackageManager.COMPONENT_ENABLED_STATE_DISABLED,
+                PackageManager.DONT_KILL_APP);
+    }
+}
@@ -0,0 +1,39 @@
+package com.example.android.sunshine.app.sync;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * What a WeatherSource got back for a ForecastRequest.  Only a STATUS_OK forecast carries a
+ * city, and days or slots depending on what was asked for.
+ */
+public class Forecast {
+
+    // The forecast is in days, with the city it is for
+    public static final int STATUS_OK = 0;
+    // The stored forecast is still current
+    public static final int STATUS_NOT_MODIFIED = 1;
+    // The source doesn't know the location
+    public static final int STATUS_NOT_FOUND = 2;
+    // The source is failing; worth backing off from
+    public static final int STATUS_SERVER_ERROR = 3;
+    // The source answered but turned the request down for some other reason
+    public static final int STATUS_ERROR = 4;
+
+    public final int status;
+
+    public long cityId;
+    public String cityName;
+    public double cityLatitude;
+    public double cityLongitude;
+    public final List<DayForecast> days = new ArrayList<DayForecast>();
+    public final List<SlotForecast> slots = new ArrayList<SlotForecast>();
+
+    // Validators to send with the next request for the location.  Either may be null.
+    public String eTag;
+    public String lastModified;
+
+    public Forecast(int status) {
+        this.status = status;
+    }
+}
@@ -0,0 +1,342 @@
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+
+/**
+ * Streaming parser for the OpenWeatherMap daily forecast response.
+ *
+ * Rather than buffering the whole response into a String and building a JSONObject tree from
+ * it, the parser pulls tokens straight off the Reader and hands each day to the Callback as soon
+ * as its JSON object has been read.  Only one day's worth of values is ever held at a time.
+ */
+public class ForecastJsonParser {
+
+    // These are the names of the JSON objects that need to be extracted.
+
+    // Location information
+    static final String OWM_CITY = "city";
+    static final String OWM_CITY_ID = "id";
+    static final String OWM_CITY_NAME = "name";
+    static final String OWM_COORD = "coord";
+
+    // Location coordinate
+    static final String OWM_LATITUDE = "lat";
+    static final String OWM_LONGITUDE = "lon";
+
+    // Weather information.  Each day's forecast info is an element of the "list" array.
+    static final String OWM_LIST = "list";
+
+    static final String OWM_PRESSURE = "pressure";
+    static final String OWM_HUMIDITY = "humidity";
+    static final String OWM_WINDSPEED = "speed";
+    static final String OWM_WIND_DIRECTION = "deg";
+
+    // All temperatures are children of the "temp" object.
+    static final String OWM_TEMPERATURE = "temp";
+    static final String OWM_MAX = "max";
+    static final String OWM_MIN = "min";
+
+    static final String OWM_WEATHER = "weather";
+    static final String OWM_DESCRIPTION = "main";
+    static final String OWM_WEATHER_ID = "id";
+
+    static final String OWM_MESSAGE_CODE = "cod";
+
+    // The values a day has to have, as the tree parser requires them too.  readDay keeps a bit
+    // for each one it has read, by its index here.
+    private static final String[] DAY_FIELDS = {OWM_PRESSURE, OWM_HUMIDITY, OWM_WINDSPEED,
+            OWM_WIND_DIRECTION, OWM_MAX, OWM_MIN, OWM_DESCRIPTION, OWM_WEATHER_ID};
+    private static final int DAY_PRESSURE = 0;
+    private static final int DAY_HUMIDITY = 1;
+    private static final int DAY_WINDSPEED = 2;
+    private static final int DAY_WIND_DIRECTION = 3;
+    private static final int DAY_MAX = 4;
+    private static final int DAY_MIN = 5;
+    private static final int DAY_DESCRIPTION = 6;
+    private static final int DAY_WEATHER_ID = 7;
+
+    /**
+     * Receives the city a forecast is for.  Shared with IntradayJsonParser, since both
+     * responses describe the city the same way.
+     */
+    public interface CityCallback {
+        void onCity(long cityId, String cityName, double lat, double lon);
+    }
+
+    /**
+     * Receives the pieces of the forecast as they come off the stream.
+     */
+    public interface Callback extends CityCallback {
+        /**
+         * @throws IOException to stop the parse, e.g. because the sync was canceled
+         */
+        void onDay(int dayIndex, double pressure, int humidity, double windSpeed,
+                   double windDirection, double high, double low, String description,
+                   int weatherId) throws IOException;
+    }
+
+    private ForecastJsonParser() {
+    }
+
+    /**
+     * Parses a forecast response, calling back for the city and for every day in order.
+     *
+     * @param in Reader positioned at the start of the response body
+     * @param callback receives the city and the days as they are parsed
+     * @return the message code ("cod") reported by the server, or HTTP_OK if there was none
+     * @throws IOException if the stream could not be read or ended early
+     * @throws JSONException if the response is not the JSON we expect
+     */
+    public static int parse(Reader in, Callback callback) throws IOException, JSONException {
+        // JsonReader only arrived in Honeycomb.  Older devices still get the tree parser.
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return parseTree(in, callback);
+        }
+        return parseStream(in, callback);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static int parseStream(Reader in, Callback callback)
+            throws IOException, JSONException {
+        int messageCode = HttpURLConnection.HTTP_OK;
+        JsonReader reader = new JsonReader(in);
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals(OWM_MESSAGE_CODE)) {
+                    messageCode = reader.nextInt();
+                } else if (name.equals(OWM_CITY)) {
+                    readCity(reader, callback);
+                } else if (name.equals(OWM_LIST)) {
+                    int dayIndex = 0;
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        readDay(reader, dayIndex++, callback);
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            // Keep the same contract as the tree parser: bad JSON is a JSONException, only
+            // problems with the stream itself surface as IOExceptions.
+            throw asJSONException(e);
+        }
+        return messageCode;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    static void readCity(JsonReader reader, CityCallback callback) throws IOException {
+        long cityId = 0;
+        String cityName = null;
+        double lat = 0;
+        double lon = 0;
+        boolean hasCoord = false;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals(OWM_CITY_ID)) {
+                cityId = reader.nextLong();
+            } else if (name.equals(OWM_CITY_NAME)) {
+                cityName = reader.nextString();
+            } else if (name.equals(OWM_COORD)) {
+                hasCoord = true;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String coordName = reader.nextName();
+                    if (coordName.equals(OWM_LATITUDE)) {
+                        lat = reader.nextDouble();
+                    } else if (coordName.equals(OWM_LONGITUDE)) {
+                        lon = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (cityName == null || !hasCoord) {
+            throw new IllegalStateException("Incomplete " + OWM_CITY + " object");
+        }
+        callback.onCity(cityId, cityName, lat, lon);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void readDay(JsonReader reader, int dayIndex, Callback callback)
+            throws IOException {
+        double pressure = 0;
+        int humidity = 0;
+        double windSpeed = 0;
+        double windDirection = 0;
+        double high = 0;
+        double low = 0;
+        String description = null;
+        int weatherId = 0;
+        int seen = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals(OWM_PRESSURE)) {
+                pressure = reader.nextDouble();
+                seen |= 1 << DAY_PRESSURE;
+            } else if (name.equals(OWM_HUMIDITY)) {
+                humidity = (int) reader.nextDouble();
+                seen |= 1 << DAY_HUMIDITY;
+            } else if (name.equals(OWM_WINDSPEED)) {
+                windSpeed = reader.nextDouble();
+                seen |= 1 << DAY_WINDSPEED;
+            } else if (name.equals(OWM_WIND_DIRECTION)) {
+                windDirection = reader.nextDouble();
+                seen |= 1 << DAY_WIND_DIRECTION;
+            } else if (name.equals(OWM_TEMPERATURE)) {
+                // Temperatures are in a child object called "temp".  Try not to name variables
+                // "temp" when working with temperature.  It confuses everybody.
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String tempName = reader.nextName();
+                    if (tempName.equals(OWM_MAX)) {
+                        high = reader.nextDouble();
+                        seen |= 1 << DAY_MAX;
+                    } else if (tempName.equals(OWM_MIN)) {
+                        low = reader.nextDouble();
+                        seen |= 1 << DAY_MIN;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (name.equals(OWM_WEATHER) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                // Description is in a child array called "weather", which is 1 element long.
+                // That element also contains a weather code.
+                reader.beginArray();
+                if (reader.hasNext()) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String weatherName = reader.nextName();
+                        if (weatherName.equals(OWM_DESCRIPTION)) {
+                            description = reader.nextString();
+                            seen |= 1 << DAY_DESCRIPTION;
+                        } else if (weatherName.equals(OWM_WEATHER_ID)) {
+                            weatherId = reader.nextInt();
+                            seen |= 1 << DAY_WEATHER_ID;
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                while (reader.hasNext()) {
+                    reader.skipValue();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        requireFields(seen, DAY_FIELDS, "day " + dayIndex);
+        callback.onDay(dayIndex, pressure, humidity, windSpeed, windDirection, high, low,
+                description, weatherId);
+    }
+
+    /**
+     * Pre-Honeycomb path: buffer the response and walk a JSONObject tree, reporting through the
+     * same Callback so that callers don't need to care which parser ran.
+     */
+    private static int parseTree(Reader in, Callback callback) throws IOException, JSONException {
+        JSONObject forecastJson = readTree(in);
+        int messageCode = HttpURLConnection.HTTP_OK;
+        if (forecastJson.has(OWM_MESSAGE_CODE)) {
+            messageCode = forecastJson.getInt(OWM_MESSAGE_CODE);
+            if (messageCode != HttpURLConnection.HTTP_OK) {
+                return messageCode;
+            }
+        }
+
+        readCity(forecastJson, callback);
+
+        JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
+        for (int i = 0; i < weatherArray.length(); i++) {
+            JSONObject dayForecast = weatherArray.getJSONObject(i);
+            JSONObject weatherObject = dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
+            JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
+            callback.onDay(i,
+                    dayForecast.getDouble(OWM_PRESSURE),
+                    dayForecast.getInt(OWM_HUMIDITY),
+                    dayForecast.getDouble(OWM_WINDSPEED),
+                    dayForecast.getDouble(OWM_WIND_DIRECTION),
+                    temperatureObject.getDouble(OWM_MAX),
+                    temperatureObject.getDouble(OWM_MIN),
+                    weatherObject.getString(OWM_DESCRIPTION),
+                    weatherObject.getInt(OWM_WEATHER_ID));
+        }
+        return messageCode;
+    }
+
+    /**
+     * Buffers the whole response into a JSONObject, for the pre-Honeycomb paths.
+     */
+    static JSONObject readTree(Reader in) throws IOException, JSONException {
+        BufferedReader reader = new BufferedReader(in);
+        StringBuilder buffer = new StringBuilder();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            buffer.append(line).append('\n');
+        }
+        if (buffer.length() == 0) {
+            throw new EOFException("Empty forecast response");
+        }
+        return new JSONObject(buffer.toString());
+    }
+
+    static void readCity(JSONObject forecastJson, CityCallback callback) throws JSONException {
+        JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
+        JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
+        callback.onCity(cityJson.optLong(OWM_CITY_ID), cityJson.getString(OWM_CITY_NAME),
+                cityCoord.getDouble(OWM_LATITUDE), cityCoord.getDouble(OWM_LONGITUDE));
+    }
+
+    /**
+     * Fails the parse like the tree parser's getters would, if a value is missing.
+     *
+     * @param seen a bit for each of the fields that was read, by its index
+     * @param where what the fields belong to, for the message
+     */
+    static void requireFields(int seen, String[] fields, String where) {
+        for (int i = 0; i < fields.length; i++) {
+            if ((seen & (1 << i)) == 0) {
+                throw new IllegalStateException("No value for " + fields[i] + " in " + where);
+            }
+        }
+    }
+
+    static JSONException asJSONException(Exception e) {
+        JSONException jsonException = new JSONException(e.getMessage());
+        jsonException.initCause(e);
+        return jsonException;
+    }
+}
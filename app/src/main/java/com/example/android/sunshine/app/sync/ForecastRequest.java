@@ -0,0 +1,26 @@
+package com.example.android.sunshine.app.sync;
+
+/**
+ * What to ask a WeatherSource for: the location, plus whatever we remember from the last
+ * forecast stored for it.
+ */
+public class ForecastRequest {
+    // The location setting, as the user typed it
+    public final String locationSetting;
+    // The source's own id for the location, or 0 if we don't know it yet
+    public final long cityId;
+    // HTTP cache validators of the stored forecast.  Either may be null.
+    public final String eTag;
+    public final String lastModified;
+    // How many days to fetch, starting today
+    public final int days;
+
+    public ForecastRequest(String locationSetting, long cityId, String eTag,
+                           String lastModified, int days) {
+        this.locationSetting = locationSetting;
+        this.cityId = cityId;
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+        this.days = days;
+    }
+}
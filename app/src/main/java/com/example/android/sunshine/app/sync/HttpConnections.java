@@ -0,0 +1,82 @@
+package com.example.android.sunshine.app.sync;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Opens and releases the connections the sync makes to the weather server.
+ *
+ * HttpURLConnection keeps sockets alive and hands them to the next request for the same host,
+ * but only if the previous response was read to the end and its stream closed without calling
+ * disconnect().  Releasing connections this way lets a sync over several locations share one
+ * connection per worker instead of paying a new TCP (and DNS) setup per city.
+ */
+public class HttpConnections {
+
+    // Responses we have finished parsing should only have trailing whitespace left.  Anything
+    // bigger than this isn't worth reading just to keep the socket.
+    private static final int MAX_DRAIN_BYTES = 8 * 1024;
+
+    // Without these a dead server can hold a sync open for minutes.  Timing out turns it into
+    // an IOException, which counts towards SyncBackoff like any other failure to reach it.
+    static final int CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    static final int READ_TIMEOUT_MILLIS = 30 * 1000;
+
+    private HttpConnections() {
+    }
+
+    /**
+     * Creates a GET request that accepts a compressed response and gives up on a server that
+     * stops answering.  The caller may add more
+     * request properties before connecting.
+     */
+    public static HttpURLConnection openGet(URL url) throws IOException {
+        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        urlConnection.setRequestMethod("GET");
+        urlConnection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        urlConnection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        ContentEncoding.acceptCompressed(urlConnection);
+        return urlConnection;
+    }
+
+    /**
+     * Gives the connection back.  A response that was read successfully is drained and closed
+     * so the socket can be reused; anything else is disconnected.
+     *
+     * @param urlConnection the connection to release
+     * @param body the (possibly decoded) response stream, or null if it was never opened
+     * @param completed true if the whole response was consumed without error
+     */
+    public static void release(HttpURLConnection urlConnection, InputStream body,
+                               boolean completed) {
+        boolean reusable = completed;
+        if (body != null) {
+            try {
+                if (completed) {
+                    reusable = drain(body);
+                }
+                body.close();
+            } catch (IOException e) {
+                reusable = false;
+            }
+        }
+        if (!reusable) {
+            urlConnection.disconnect();
+        }
+    }
+
+    private static boolean drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[512];
+        int drained = 0;
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            drained += count;
+            if (drained > MAX_DRAIN_BYTES) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,221 @@
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+
+/**
+ * Streaming parser for the OpenWeatherMap 3-hour forecast response, which works like
+ * ForecastJsonParser: each slot goes to the Callback as soon as its JSON object has been read.
+ */
+public class IntradayJsonParser {
+
+    // Each slot's forecast info is an element of the "list" array
+    static final String OWM_TIME = "dt";
+
+    // Temperature, pressure and humidity are children of the "main" object
+    static final String OWM_MAIN = "main";
+    static final String OWM_TEMPERATURE = "temp";
+
+    // Wind speed and direction are children of the "wind" object
+    static final String OWM_WIND = "wind";
+
+    // The values a slot has to have, with their bits in readSlot's mask, as in ForecastJsonParser
+    private static final String[] SLOT_FIELDS = {OWM_TIME, OWM_TEMPERATURE,
+            ForecastJsonParser.OWM_PRESSURE, ForecastJsonParser.OWM_HUMIDITY,
+            ForecastJsonParser.OWM_WINDSPEED, ForecastJsonParser.OWM_WIND_DIRECTION,
+            ForecastJsonParser.OWM_WEATHER_ID};
+    private static final int SLOT_TIME = 0;
+    private static final int SLOT_TEMPERATURE = 1;
+    private static final int SLOT_PRESSURE = 2;
+    private static final int SLOT_HUMIDITY = 3;
+    private static final int SLOT_WINDSPEED = 4;
+    private static final int SLOT_WIND_DIRECTION = 5;
+    private static final int SLOT_WEATHER_ID = 6;
+
+    /**
+     * Receives the pieces of the forecast as they come off the stream.
+     */
+    public interface Callback extends ForecastJsonParser.CityCallback {
+        /**
+         * @param time start of the slot, in seconds since the epoch
+         * @throws IOException to stop the parse, e.g. because the sync was canceled
+         */
+        void onSlot(long time, double temperature, double pressure, int humidity,
+                    double windSpeed, double windDirection, int weatherId) throws IOException;
+    }
+
+    private IntradayJsonParser() {
+    }
+
+    /**
+     * Parses a 3-hour forecast response, calling back for the city and for every slot in order.
+     *
+     * @param in Reader positioned at the start of the response body
+     * @param callback receives the city and the slots as they are parsed
+     * @return the message code ("cod") reported by the server, or HTTP_OK if there was none
+     * @throws IOException if the stream could not be read or ended early
+     * @throws JSONException if the response is not the JSON we expect
+     */
+    public static int parse(Reader in, Callback callback) throws IOException, JSONException {
+        // JsonReader only arrived in Honeycomb.  Older devices still get the tree parser.
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return parseTree(in, callback);
+        }
+        return parseStream(in, callback);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static int parseStream(Reader in, Callback callback)
+            throws IOException, JSONException {
+        int messageCode = HttpURLConnection.HTTP_OK;
+        JsonReader reader = new JsonReader(in);
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals(ForecastJsonParser.OWM_MESSAGE_CODE)) {
+                    messageCode = reader.nextInt();
+                } else if (name.equals(ForecastJsonParser.OWM_CITY)) {
+                    ForecastJsonParser.readCity(reader, callback);
+                } else if (name.equals(ForecastJsonParser.OWM_LIST)) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        readSlot(reader, callback);
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (MalformedJsonException | IllegalStateException | NumberFormatException e) {
+            throw ForecastJsonParser.asJSONException(e);
+        }
+        return messageCode;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void readSlot(JsonReader reader, Callback callback) throws IOException {
+        long time = 0;
+        double temperature = 0;
+        double pressure = 0;
+        int humidity = 0;
+        double windSpeed = 0;
+        double windDirection = 0;
+        int weatherId = 0;
+        int seen = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (name.equals(OWM_TIME)) {
+                time = reader.nextLong();
+                seen |= 1 << SLOT_TIME;
+            } else if (name.equals(OWM_MAIN)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String mainName = reader.nextName();
+                    if (mainName.equals(OWM_TEMPERATURE)) {
+                        temperature = reader.nextDouble();
+                        seen |= 1 << SLOT_TEMPERATURE;
+                    } else if (mainName.equals(ForecastJsonParser.OWM_PRESSURE)) {
+                        pressure = reader.nextDouble();
+                        seen |= 1 << SLOT_PRESSURE;
+                    } else if (mainName.equals(ForecastJsonParser.OWM_HUMIDITY)) {
+                        humidity = (int) reader.nextDouble();
+                        seen |= 1 << SLOT_HUMIDITY;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (name.equals(OWM_WIND)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String windName = reader.nextName();
+                    if (windName.equals(ForecastJsonParser.OWM_WINDSPEED)) {
+                        windSpeed = reader.nextDouble();
+                        seen |= 1 << SLOT_WINDSPEED;
+                    } else if (windName.equals(ForecastJsonParser.OWM_WIND_DIRECTION)) {
+                        windDirection = reader.nextDouble();
+                        seen |= 1 << SLOT_WIND_DIRECTION;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (name.equals(ForecastJsonParser.OWM_WEATHER)
+                    && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                // Only the first element's weather code is kept
+                reader.beginArray();
+                if (reader.hasNext()) {
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        if (reader.nextName().equals(ForecastJsonParser.OWM_WEATHER_ID)) {
+                            weatherId = reader.nextInt();
+                            seen |= 1 << SLOT_WEATHER_ID;
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                while (reader.hasNext()) {
+                    reader.skipValue();
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        ForecastJsonParser.requireFields(seen, SLOT_FIELDS, "slot " + time);
+        callback.onSlot(time, temperature, pressure, humidity, windSpeed, windDirection,
+                weatherId);
+    }
+
+    /**
+     * Pre-Honeycomb path, reporting through the same Callback.
+     */
+    private static int parseTree(Reader in, Callback callback) throws IOException, JSONException {
+        JSONObject forecastJson = ForecastJsonParser.readTree(in);
+        int messageCode = HttpURLConnection.HTTP_OK;
+        if (forecastJson.has(ForecastJsonParser.OWM_MESSAGE_CODE)) {
+            messageCode = forecastJson.getInt(ForecastJsonParser.OWM_MESSAGE_CODE);
+            if (messageCode != HttpURLConnection.HTTP_OK) {
+                return messageCode;
+            }
+        }
+
+        ForecastJsonParser.readCity(forecastJson, callback);
+
+        JSONArray slotArray = forecastJson.getJSONArray(ForecastJsonParser.OWM_LIST);
+        for (int i = 0; i < slotArray.length(); i++) {
+            JSONObject slotForecast = slotArray.getJSONObject(i);
+            JSONObject mainObject = slotForecast.getJSONObject(OWM_MAIN);
+            JSONObject windObject = slotForecast.getJSONObject(OWM_WIND);
+            JSONObject weatherObject = slotForecast.getJSONArray(ForecastJsonParser.OWM_WEATHER)
+                    .getJSONObject(0);
+            callback.onSlot(slotForecast.getLong(OWM_TIME),
+                    mainObject.getDouble(OWM_TEMPERATURE),
+                    mainObject.getDouble(ForecastJsonParser.OWM_PRESSURE),
+                    mainObject.getInt(ForecastJsonParser.OWM_HUMIDITY),
+                    windObject.getDouble(ForecastJsonParser.OWM_WINDSPEED),
+                    windObject.getDouble(ForecastJsonParser.OWM_WIND_DIRECTION),
+                    weatherObject.getInt(ForecastJsonParser.OWM_WEATHER_ID));
+        }
+        return messageCode;
+    }
+}
@@ -0,0 +1,286 @@
+package com.example.android.sunshine.app.sync;
+
+import android.net.Uri;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Fetches daily and 3-hour forecasts from OpenWeatherMap.
+ *
+ * The response is decompressed and parsed straight off the connection, one day at a time, and
+ * the connection is handed back for reuse as soon as it has been read.  A canceled fetch has
+ * its connection pulled mid-read and stops at the next day the parser hands over.
+ */
+public class OwmWeatherSource implements WeatherSource {
+    private static final String LOG_TAG = OwmWeatherSource.class.getSimpleName();
+
+    // Possible parameters are avaiable at OWM's forecast API page, at
+    // http://openweathermap.org/API#forecast
+    public static final String API_BASE_URL = "http://api.openweathermap.org/data/2.5";
+    private static final String DAILY_PATH = "forecast/daily";
+    private static final String INTRADAY_PATH = "forecast";
+    private static final String QUERY_PARAM = "q";
+    private static final String CITY_ID_PARAM = "id";
+    private static final String FORMAT_PARAM = "mode";
+    private static final String UNITS_PARAM = "units";
+    private static final String COUNT_PARAM = "cnt";
+    private static final String APPID_PARAM = "APPID";
+
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    private final String mBaseUrl;
+    private final String mApiKey;
+
+    /**
+     * @param baseUrl API_BASE_URL, or a stand-in server that speaks the same API
+     * @param apiKey the OWM API key
+     */
+    public OwmWeatherSource(String baseUrl, String apiKey) {
+        mBaseUrl = baseUrl;
+        mApiKey = apiKey;
+    }
+
+    @Override
+    public Forecast fetchForecast(ForecastRequest request, SyncTrace trace,
+                                  SyncCancellation cancellation)
+            throws IOException, JSONException {
+        return fetch(buildUrl(DAILY_PATH, request, request.days), request, false, trace,
+                cancellation);
+    }
+
+    @Override
+    public Forecast fetchIntraday(ForecastRequest request, SyncTrace trace,
+                                  SyncCancellation cancellation)
+            throws IOException, JSONException {
+        // For this API cnt counts slots, not days
+        return fetch(buildUrl(INTRADAY_PATH, request,
+                request.days * WeatherContract.IntradayEntry.SLOTS_PER_DAY), request, true, trace,
+                cancellation);
+    }
+
+    private Forecast fetch(URL url, ForecastRequest request, boolean intraday, SyncTrace trace,
+                           SyncCancellation cancellation) throws IOException, JSONException {
+        // These need to be declared outside the try
+        // so that they can be released in the finally block.
+        HttpURLConnection urlConnection = null;
+        InputStream inputStream = null;
+        boolean completed = false;
+        try {
+            urlConnection = HttpConnections.openGet(url);
+            cancellation.attach(urlConnection);
+            if (!intraday) {
+                // What we stored came from the daily forecast, so they only match that
+                addCacheValidators(urlConnection, request);
+            }
+
+            long start = System.nanoTime();
+            urlConnection.connect();
+            trace.record(WeatherContract.SyncHistoryEntry.STAGE_CONNECT, start);
+
+            // Returns once the status line and headers are in
+            start = System.nanoTime();
+            int responseCode = urlConnection.getResponseCode();
+            trace.record(WeatherContract.SyncHistoryEntry.STAGE_FIRST_BYTE, start);
+            if (responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR) {
+                Log.e(LOG_TAG, "Server error " + responseCode + " for "
+                        + request.locationSetting);
+                return new Forecast(Forecast.STATUS_SERVER_ERROR);
+            }
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                completed = true;
+                return new Forecast(Forecast.STATUS_NOT_MODIFIED);
+            }
+
+            // Decompress and parse straight off the input stream; the response is never held
+            // as a String
+            inputStream = ContentEncoding.getDecodedInputStream(urlConnection,
+                    trace.meterDownload(urlConnection.getInputStream()));
+            if (inputStream == null) {
+                return new Forecast(Forecast.STATUS_ERROR);
+            }
+            InputStreamReader reader = new InputStreamReader(inputStream, "UTF-8");
+            Forecast forecast = intraday
+                    ? readIntraday(reader, trace, cancellation)
+                    : readForecast(reader, trace, cancellation);
+            forecast.eTag = urlConnection.getHeaderField(HEADER_ETAG);
+            forecast.lastModified = urlConnection.getHeaderField(HEADER_LAST_MODIFIED);
+            completed = true;
+            return forecast;
+        } catch (IOException e) {
+            // A connection pulled by cancel() fails the read with whatever the socket throws
+            cancellation.throwIfCanceled();
+            throw e;
+        } finally {
+            if (urlConnection != null) {
+                cancellation.detach(urlConnection);
+                // Keeps the socket alive for the next location when the response was good
+                HttpConnections.release(urlConnection, inputStream, completed);
+            }
+        }
+    }
+
+    private URL buildUrl(String path, ForecastRequest request, int count) throws IOException {
+        // Once we hold a forecast for the location we know OWM's id for the city, which
+        // spares the server from geocoding the location string on every sync.
+        Uri.Builder uriBuilder = Uri.parse(mBaseUrl).buildUpon().appendEncodedPath(path);
+        if (request.cityId > 0) {
+            uriBuilder.appendQueryParameter(CITY_ID_PARAM, Long.toString(request.cityId));
+        } else {
+            uriBuilder.appendQueryParameter(QUERY_PARAM, request.locationSetting);
+        }
+        Uri builtUri = uriBuilder
+                .appendQueryParameter(FORMAT_PARAM, "json")
+                .appendQueryParameter(UNITS_PARAM, "metric")
+                .appendQueryParameter(COUNT_PARAM, Integer.toString(count))
+                .appendQueryParameter(APPID_PARAM, mApiKey)
+                .build();
+        return new URL(builtUri.toString());
+    }
+
+    /**
+     * Adds If-None-Match / If-Modified-Since to the request using the validators stored with the
+     * location.
+     */
+    private static void addCacheValidators(HttpURLConnection urlConnection,
+                                           ForecastRequest request) {
+        if (request.eTag != null) {
+            urlConnection.setRequestProperty(HEADER_IF_NONE_MATCH, request.eTag);
+        }
+        if (request.lastModified != null) {
+            urlConnection.setRequestProperty(HEADER_IF_MODIFIED_SINCE, request.lastModified);
+        }
+    }
+
+    private static Forecast readForecast(InputStreamReader reader, SyncTrace trace,
+                                         SyncCancellation cancellation)
+            throws IOException, JSONException {
+        DayCollector collector = new DayCollector(cancellation);
+        long start = System.nanoTime();
+        int messageCode = ForecastJsonParser.parse(reader, collector);
+        trace.recordDownloadAndParse(start, collector.forecast.days.size());
+
+        return checkForecast(messageCode, collector.forecast);
+    }
+
+    private static Forecast readIntraday(InputStreamReader reader, SyncTrace trace,
+                                         SyncCancellation cancellation)
+            throws IOException, JSONException {
+        SlotCollector collector = new SlotCollector(cancellation);
+        long start = System.nanoTime();
+        int messageCode = IntradayJsonParser.parse(reader, collector);
+        trace.recordDownloadAndParse(start, collector.forecast.slots.size());
+        return checkForecast(messageCode, collector.forecast);
+    }
+
+    /**
+     * @return the forecast if the server says it is one, or why it isn't
+     */
+    private static Forecast checkForecast(int messageCode, Forecast forecast)
+            throws JSONException {
+        // do we have an error?
+        switch (messageCode) {
+            case HttpURLConnection.HTTP_OK:
+                break;
+            case HttpURLConnection.HTTP_NOT_FOUND:
+                return new Forecast(Forecast.STATUS_NOT_FOUND);
+            default:
+                return new Forecast(messageCode >= HttpURLConnection.HTTP_INTERNAL_ERROR
+                        ? Forecast.STATUS_SERVER_ERROR : Forecast.STATUS_ERROR);
+        }
+
+        if (forecast.cityName == null) {
+            throw new JSONException("No value for " + ForecastJsonParser.OWM_CITY);
+        }
+        return forecast;
+    }
+
+    /**
+     * Builds the days as the parser hands them over, so that no intermediate JSON tree is ever
+     * built.  OWM doesn't promise to send "city" before "list", so either may come first.
+     */
+    private static class DayCollector implements ForecastJsonParser.Callback {
+        final Forecast forecast = new Forecast(Forecast.STATUS_OK);
+        final SyncCancellation cancellation;
+        final Time dayTime;
+        final int julianStartDay;
+
+        DayCollector(SyncCancellation cancellation) {
+            this.cancellation = cancellation;
+
+            // OWM returns daily forecasts based upon the local time of the city that is being
+            // asked for, which means that we need to know the GMT offset to translate this data
+            // properly.
+
+            // Since this data is also sent in-order and the first day is always the
+            // current day, we're going to take advantage of that to get a nice
+            // normalized UTC date for all of our weather.
+            Time localTime = new Time();
+            localTime.setToNow();
+
+            // we start at the day returned by local time. Otherwise this is a mess.
+            julianStartDay = Time.getJulianDay(System.currentTimeMillis(), localTime.gmtoff);
+
+            // now we work exclusively in UTC
+            dayTime = new Time();
+        }
+
+        @Override
+        public void onCity(long cityId, String cityName, double lat, double lon) {
+            forecast.cityId = cityId;
+            forecast.cityName = cityName;
+            forecast.cityLatitude = lat;
+            forecast.cityLongitude = lon;
+        }
+
+        @Override
+        public void onDay(int dayIndex, double pressure, int humidity, double windSpeed,
+                          double windDirection, double high, double low, String description,
+                          int weatherId) throws IOException {
+            // Whatever of the response is already buffered would otherwise still be parsed
+            cancellation.throwIfCanceled();
+            // Cheating to convert this to UTC time, which is what we want anyhow
+            long dateTime = dayTime.setJulianDay(julianStartDay + dayIndex);
+            forecast.days.add(new DayForecast(dateTime, pressure, humidity, windSpeed,
+                    windDirection, high, low, description, weatherId));
+        }
+    }
+
+    private static class SlotCollector implements IntradayJsonParser.Callback {
+        final Forecast forecast = new Forecast(Forecast.STATUS_OK);
+        final SyncCancellation cancellation;
+
+        SlotCollector(SyncCancellation cancellation) {
+            this.cancellation = cancellation;
+        }
+
+        @Override
+        public void onCity(long cityId, String cityName, double lat, double lon) {
+            forecast.cityId = cityId;
+            forecast.cityName = cityName;
+            forecast.cityLatitude = lat;
+            forecast.cityLongitude = lon;
+        }
+
+        @Override
+        public void onSlot(long time, double temperature, double pressure, int humidity,
+                           double windSpeed, double windDirection, int weatherId)
+                throws IOException {
+            cancellation.throwIfCanceled();
+            forecast.slots.add(new SlotForecast(time * 1000, temperature, pressure, humidity,
+                    windSpeed, windDirection, weatherId));
+        }
+    }
+}
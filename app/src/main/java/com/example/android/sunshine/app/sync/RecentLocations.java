@@ -0,0 +1,57 @@
+package com.example.android.sunshine.app.sync;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Splits the locations we hold a forecast for into the ones the sync keeps fresh and the ones
+ * it evicts.  Kept are the preferred location and the locations most recently preferred before
+ * it, so that switching back to one of them shows its forecast straight from the database
+ * while a sync revalidates it in the background.
+ */
+public class RecentLocations {
+
+    // The preferred location included
+    public static final int MAX_LOCATIONS = 5;
+
+    private final List<String> mKept;
+    private final List<String> mEvicted;
+
+    /**
+     * @param preferredLocation the location setting the user has chosen, kept whatever its
+     *                          place among the stored locations, or even if it isn't stored yet
+     * @param storedLocations every location we hold, most recently used first
+     * @param maxLocations how many locations to keep
+     */
+    public RecentLocations(String preferredLocation, List<String> storedLocations,
+                           int maxLocations) {
+        mKept = new ArrayList<String>(maxLocations);
+        mEvicted = new ArrayList<String>();
+        mKept.add(preferredLocation);
+        for (String location : storedLocations) {
+            if (location.equals(preferredLocation)) {
+                continue;
+            }
+            if (mKept.size() < maxLocations) {
+                mKept.add(location);
+            } else {
+                mEvicted.add(location);
+            }
+        }
+    }
+
+    /**
+     * @return the locations to sync, the preferred one first
+     */
+    public List<String> getKept() {
+        return Collections.unmodifiableList(mKept);
+    }
+
+    /**
+     * @return the stored locations that have dropped out, least recently used last
+     */
+    public List<String> getEvicted() {
+        return Collections.unmodifiableList(mEvicted);
+    }
+}
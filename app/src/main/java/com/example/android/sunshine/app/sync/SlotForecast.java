@@ -0,0 +1,26 @@
+package com.example.android.sunshine.app.sync;
+
+/**
+ * One 3-hour step of forecast as a WeatherSource returns it, in metric units.
+ */
+public class SlotForecast {
+    // Start of the slot, in milliseconds since the epoch
+    public final long time;
+    public final double temperature;
+    public final double pressure;
+    public final int humidity;
+    public final double windSpeed;
+    public final double windDirection;
+    public final int weatherId;
+
+    public SlotForecast(long time, double temperature, double pressure, int humidity,
+                        double windSpeed, double windDirection, int weatherId) {
+        this.time = time;
+        this.temperature = temperature;
+        this.pressure = pressure;
+        this.humidity = humidity;
+        this.windSpeed = windSpeed;
+        this.windDirection = windDirection;
+        this.weatherId = weatherId;
+    }
+}
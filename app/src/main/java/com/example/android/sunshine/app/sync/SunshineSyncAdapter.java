@@ -7,11 +7,13 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.AbstractThreadedSyncAdapter;
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.content.SyncRequest;
 import android.content.SyncResult;
@@ -22,47 +24,87 @@ import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.RemoteException;
 import android.preference.PreferenceManager;
 import android.support.annotation.IntDef;
 import android.support.v4.app.NotificationCompat;
 import android.support.v4.app.TaskStackBuilder;
-import android.text.format.Time;
 import android.util.Log;
 
 import com.bumptech.glide.Glide;
+import com.bumptech.glide.load.engine.DiskCacheStrategy;
 import com.example.android.sunshine.app.BuildConfig;
 import com.example.android.sunshine.app.MainActivity;
 import com.example.android.sunshine.app.R;
 import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.LocationIdCache;
 import com.example.android.sunshine.app.data.WeatherContract;
+import com.example.android.sunshine.app.data.WeatherRows;
 import com.example.android.sunshine.app.muzei.WeatherMuzeiSource;
 import com.example.android.sunshine.app.watchface.WatchFaceIntentService;
 
-import org.json.JSONArray;
 import org.json.JSONException;
-import org.json.JSONObject;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.util.Vector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public final String LOG_TAG = SunshineSyncAdapter.class.getSimpleName();
+    // Sync extra naming the one location an immediate sync is for
+    public static final String EXTRA_LOCATION_SETTING = "location_setting";
+    // Sync extra picking what a sync fetches, one of the SYNC_TIER_ values
+    public static final String EXTRA_SYNC_TIER = "sync_tier";
+    // The whole forecast for every location we track.  What a sync without the extra does.
+    public static final int SYNC_TIER_FULL = 0;
+    // Only today for the preferred location, which is all the widgets, Muzei, the notification
+    // and the watch face show.  Falls back to the full forecast while we have none stored.
+    public static final int SYNC_TIER_CURRENT = 1;
     public static final String ACTION_DATA_UPDATED =
             "com.example.android.sunshine.app.ACTION_DATA_UPDATED";
-    // Interval at which to sync with the weather, in seconds.
-    // 60 seconds (1 minute) * 180 = 3 hours
+    // Interval at which to refresh today's weather, in seconds, until SyncScheduler has seen
+    // some syncs.  60 seconds (1 minute) * 180 = 3 hours
     public static final int SYNC_INTERVAL = 60 * 180;
     public static final int SYNC_FLEXTIME = SYNC_INTERVAL/3;
+    // Interval at which to fetch the whole forecast, in seconds.  The days further out change
+    // slowly, and today is kept fresh in between.  60 seconds * 60 * 12 = 12 hours
+    public static final int FULL_SYNC_INTERVAL = 60 * 60 * 12;
+    public static final int FULL_SYNC_FLEXTIME = FULL_SYNC_INTERVAL/3;
+    // How many days of forecast the full and the current tier ask for
+    private static final int FORECAST_DAYS = 14;
+    private static final int CURRENT_DAYS = 1;
+    // How many days of the 3-hour forecast the full tier asks for, which is all OWM has
+    private static final int INTRADAY_DAYS = 5;
+    // The 3-hour forecast moves on one step of this long at a time
+    private static final long INTRADAY_STEP_MILLIS = 1000 * 60 * 60 * 3;
+    // Returned by syncLocation when it didn't store anything: because of the location or our
+    // side, because the server was broken, because its answer made no sense, or because the
+    // network didn't get us to it
+    private static final int SYNC_FAILED = -1;
+    private static final int SYNC_SERVER_ERROR = -2;
+    private static final int SYNC_PARSE_ERROR = -3;
+    private static final int SYNC_NETWORK_ERROR = -4;
+    // Returned by syncLocation when the sync was canceled before the location was stored
+    private static final int SYNC_CANCELED = -5;
     private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+    // How long per-stage timings are kept in sync_history
+    private static final long SYNC_HISTORY_RETENTION_MILLIS = 30 * DAY_IN_MILLIS;
     private static final int WEATHER_NOTIFICATION_ID = 3004;
+    // Returned by addLocation when the location is inserted as part of the sync's batch
+    static final long NEW_LOCATION_ID = -1;
 
 
     private static final String[] NOTIFY_WEATHER_PROJECTION = new String[] {
@@ -78,6 +120,41 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     private static final int INDEX_MIN_TEMP = 2;
     private static final int INDEX_SHORT_DESC = 3;
 
+    // Everything a sync writes for a day, used to tell whether a day actually changed
+    private static final String[] FORECAST_DIFF_PROJECTION = new String[] {
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES
+    };
+
+    // these indices must match the projection
+    private static final int INDEX_DIFF_DATE = 0;
+    private static final int INDEX_DIFF_WEATHER_ID = 1;
+    private static final int INDEX_DIFF_SHORT_DESC = 2;
+    private static final int INDEX_DIFF_MIN_TEMP = 3;
+    private static final int INDEX_DIFF_MAX_TEMP = 4;
+    private static final int INDEX_DIFF_HUMIDITY = 5;
+    private static final int INDEX_DIFF_PRESSURE = 6;
+    private static final int INDEX_DIFF_WIND_SPEED = 7;
+    private static final int INDEX_DIFF_DEGREES = 8;
+
+    private static final String[] CACHED_LOCATION_PROJECTION = new String[] {
+            WeatherContract.LocationEntry.COLUMN_CITY_ID,
+            WeatherContract.LocationEntry.COLUMN_ETAG,
+            WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED
+    };
+
+    // these indices must match the projection
+    private static final int INDEX_CITY_ID = 0;
+    private static final int INDEX_ETAG = 1;
+    private static final int INDEX_LAST_MODIFIED = 2;
+
     @Retention(RetentionPolicy.SOURCE)
     @IntDef({LOCATION_STATUS_OK, LOCATION_STATUS_SERVER_DOWN, LOCATION_STATUS_SERVER_INVALID,  LOCATION_STATUS_UNKNOWN, LOCATION_STATUS_INVALID})
     public @interface LocationStatus {}
@@ -88,276 +165,870 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     public static final int LOCATION_STATUS_UNKNOWN = 3;
     public static final int LOCATION_STATUS_INVALID = 4;
 
+    // Fetching and parsing happen in parallel, for up to this many locations at a time
+    private static final int MAX_PARALLEL_LOCATIONS = 4;
+    // How long a canceled sync waits for its workers to let go of the database.  Their
+    // connections are pulled on cancel, so they should need far less.
+    private static final long CANCEL_WAIT_MILLIS = 5 * 1000;
+
+    private final Object mCommitLock = new Object();
+    private final WeatherSource mWeatherSource;
+    // The sync that is running, so that onSyncCanceled can reach it
+    private volatile SyncCancellation mCancellation;
+
     public SunshineSyncAdapter(Context context, boolean autoInitialize) {
+        this(context, autoInitialize, new OwmWeatherSource(OwmWeatherSource.API_BASE_URL,
+                BuildConfig.OPEN_WEATHER_MAP_API_KEY));
+    }
+
+    SunshineSyncAdapter(Context context, boolean autoInitialize, WeatherSource weatherSource) {
         super(context, autoInitialize);
+        mWeatherSource = weatherSource;
     }
 
     @Override
     public void onPerformSync(Account account, Bundle extras, String authority, ContentProviderClient provider, SyncResult syncResult) {
         Log.d(LOG_TAG, "Starting sync");
-        String locationQuery = Utility.getPreferredLocation(getContext());
+        SyncBackoff backoff = loadBackoff();
+        if (backoff.isCircuitOpen()) {
+            // The server has failed us repeatedly.  Don't spend radio time on it, not even for
+            // a manual refresh, until the backoff is over.
+            Log.d(LOG_TAG, "Server failing, sync skipped until " + backoff.getRetryAtMillis());
+            syncResult.delayUntil = backoff.getRetryAtMillis() / 1000;
+            return;
+        }
 
-        // These two need to be declared outside the try/catch
-        // so that they can be closed in the finally block.
-        HttpURLConnection urlConnection = null;
-        BufferedReader reader = null;
+        String preferredLocation = Utility.getPreferredLocation(getContext());
+        markLocationUsed(preferredLocation);
+        // An immediate sync is for one location; a periodic one refreshes everything we track,
+        // or just the preferred location when only today is being refreshed
+        String requestedLocation = extras.getString(EXTRA_LOCATION_SETTING);
+        int requestedTier = extras.getInt(EXTRA_SYNC_TIER, SYNC_TIER_FULL);
+        // On a metered network the full forecast waits for better conditions, but today is
+        // still refreshed in its place
+        SyncPolicy policy = new SyncPolicy(SyncPolicy.getDeviceState(getContext()));
+        int tier = policy.getTier(requestedTier,
+                extras.getBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, false));
+        if (tier != requestedTier) {
+            Log.d(LOG_TAG, "Full sync deferred on a metered network");
+            setSyncDeferred(getContext(), true);
+        }
+        List<String> locations;
+        if (requestedLocation != null) {
+            locations = Collections.singletonList(requestedLocation);
+        } else if (tier == SYNC_TIER_CURRENT) {
+            locations = Collections.singletonList(preferredLocation);
+        } else {
+            locations = getTrackedLocations(preferredLocation);
+        }
+
+        SyncCancellation cancellation = new SyncCancellation();
+        mCancellation = cancellation;
+        SyncRequestCoalescer coalescer = SyncRequestCoalescer.getInstance(getContext());
+        coalescer.onSyncStarted(locations);
+        try {
+            syncLocations(locations, tier, preferredLocation, policy, backoff, syncResult,
+                    cancellation);
+            // A full pass over everything we track, art included, catches up whatever was
+            // deferred before it
+            if (tier == SYNC_TIER_FULL && requestedLocation == null && policy.allowsArtPrefetch()
+                    && !cancellation.isCanceled()) {
+                setSyncDeferred(getContext(), false);
+            }
+        } finally {
+            coalescer.onSyncFinished(locations);
+            mCancellation = null;
+        }
+    }
 
-        // Will contain the raw JSON response as a string.
-        String forecastJsonStr = null;
+    /**
+     * Called when the sync is canceled or superseded, e.g. by cancelSync after the location
+     * changed.  The default only interrupts the sync thread, which the workers blocked on the
+     * network wouldn't notice; this also pulls their connections.
+     */
+    @Override
+    public void onSyncCanceled() {
+        SyncCancellation cancellation = mCancellation;
+        if (cancellation != null) {
+            Log.d(LOG_TAG, "Canceling sync");
+            cancellation.cancel();
+        }
+        super.onSyncCanceled();
+    }
 
-        String format = "json";
-        String units = "metric";
-        int numDays = 14;
+    /**
+     * Fetches and stores every location, then brings the widgets and friends up to date and
+     * settles when the next sync should happen.
+     */
+    private void syncLocations(List<String> locations, final int tier, String preferredLocation,
+                               SyncPolicy policy, SyncBackoff backoff, SyncResult syncResult,
+                               final SyncCancellation cancellation) {
+        long syncStartNanos = System.nanoTime();
+        long syncStarted = System.currentTimeMillis();
+        SyncTrace passTrace = new SyncTrace(syncStarted, null);
+        List<SyncTrace> traces = new ArrayList<SyncTrace>(locations.size() + 1);
+
+        // Fetching and parsing run on a bounded pool, so a pass over several locations takes
+        // about as long as the slowest few of them rather than all of them end to end.
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(locations.size(), MAX_PARALLEL_LOCATIONS));
+        List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>(locations.size());
+        for (final String locationQuery : locations) {
+            final SyncTrace trace = new SyncTrace(syncStarted, locationQuery);
+            traces.add(trace);
+            tasks.add(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return syncLocation(locationQuery, tier, trace, cancellation);
+                }
+            });
+        }
 
+        boolean preferredSynced = false;
+        int preferredChanged = 0;
+        int changedDays = 0;
+        int syncedDays = 0;
+        int serverErrors = 0;
         try {
-            // Construct the URL for the OpenWeatherMap query
-            // Possible parameters are avaiable at OWM's forecast API page, at
-            // http://openweathermap.org/API#forecast
-            final String FORECAST_BASE_URL =
-                    "http://api.openweathermap.org/data/2.5/forecast/daily?";
-            final String QUERY_PARAM = "q";
-            final String FORMAT_PARAM = "mode";
-            final String UNITS_PARAM = "units";
-            final String DAYS_PARAM = "cnt";
-            final String APPID_PARAM = "APPID";
-
-            Uri builtUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
-                    .appendQueryParameter(QUERY_PARAM, locationQuery)
-                    .appendQueryParameter(FORMAT_PARAM, format)
-                    .appendQueryParameter(UNITS_PARAM, units)
-                    .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
-                    .appendQueryParameter(APPID_PARAM, BuildConfig.OPEN_WEATHER_MAP_API_KEY)
-                    .build();
-
-            URL url = new URL(builtUri.toString());
-
-            // Create the request to OpenWeatherMap, and open the connection
-            urlConnection = (HttpURLConnection) url.openConnection();
-            urlConnection.setRequestMethod("GET");
-            urlConnection.connect();
-
-            // Read the input stream into a String
-            InputStream inputStream = urlConnection.getInputStream();
-            StringBuffer buffer = new StringBuffer();
-            if (inputStream == null) {
-                // Nothing to do.
-                return;
+            List<Future<Integer>> results = executor.invokeAll(tasks);
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    int changed = results.get(i).get();
+                    if (changed == SYNC_SERVER_ERROR) {
+                        serverErrors++;
+                        syncResult.stats.numIoExceptions++;
+                        continue;
+                    } else if (changed == SYNC_NETWORK_ERROR) {
+                        // Retried by the system, but not held against the server
+                        syncResult.stats.numIoExceptions++;
+                        continue;
+                    } else if (changed == SYNC_PARSE_ERROR) {
+                        syncResult.stats.numParseExceptions++;
+                        continue;
+                    } else if (changed == SYNC_FAILED) {
+                        syncResult.stats.numSkippedEntries++;
+                        continue;
+                    } else if (changed == SYNC_CANCELED) {
+                        continue;
+                    }
+                    syncResult.stats.numInserts += changed;
+                    changedDays += changed;
+                    syncedDays += tier == SYNC_TIER_CURRENT ? CURRENT_DAYS : FORECAST_DAYS;
+                    if (locations.get(i).equals(preferredLocation)) {
+                        preferredSynced = true;
+                        preferredChanged = changed;
+                    }
+                } catch (ExecutionException e) {
+                    Log.e(LOG_TAG, "Error syncing " + locations.get(i), e.getCause());
+                }
             }
-            reader = new BufferedReader(new InputStreamReader(inputStream));
-
-            String line;
-            while ((line = reader.readLine()) != null) {
-                // Since it's JSON, adding a newline isn't necessary (it won't affect parsing)
-                // But it does make debugging a *lot* easier if you print out the completed
-                // buffer for debugging.
-                buffer.append(line + "\n");
+        } catch (InterruptedException e) {
+            // onSyncCanceled interrupted us.  Interrupting the workers in turn rolls back a
+            // batch one of them may be applying, and waiting for them means nothing of this
+            // sync lands after the next one has started.
+            Log.w(LOG_TAG, "Sync interrupted");
+            executor.shutdownNow();
+            awaitWorkers(executor);
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        boolean canceled = cancellation.isCanceled();
+        if (!canceled) {
+            // One location getting through is enough to show the server is alive.  Only a
+            // pass where it failed everywhere we asked counts against it.
+            if (syncedDays > 0) {
+                backoff.onSuccess();
+            } else if (serverErrors > 0) {
+                syncResult.delayUntil = backoff.onFailure() / 1000;
+                Log.d(LOG_TAG, "Server failing " + backoff.getFailureCount()
+                        + " times in a row, next attempt at " + backoff.getRetryAtMillis());
             }
+            saveBackoff(backoff);
+        }
 
-            if (buffer.length() == 0) {
-                // Stream was empty.  No point in parsing.
-                setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                return;
+        // Done ahead of the fan-out, so that the widgets and the notification already find the
+        // art on disk.  Art that is already cached costs little, so this runs on every pass
+        // that reached the preferred location, which also catches up after the art pack changed.
+        if (preferredSynced && !canceled) {
+            long start = System.nanoTime();
+            int artUrls = WeatherArtPrefetcher.prefetch(getContext(), preferredLocation, policy,
+                    cancellation);
+            if (artUrls == WeatherArtPrefetcher.PREFETCH_DEFERRED) {
+                // Glide fetches what is missing when it is shown, so nothing goes without
+                Log.d(LOG_TAG, "Art prefetch deferred on a metered network");
+                setSyncDeferred(getContext(), true);
+            } else {
+                passTrace.record(WeatherContract.SyncHistoryEntry.STAGE_ART, start, artUrls);
             }
-            forecastJsonStr = buffer.toString();
-            getWeatherDataFromJson(forecastJsonStr, locationQuery);
-        } catch (IOException e) {
-            Log.e(LOG_TAG, "Error ", e);
-            // If the code didn't successfully get the weather data, there's no point in attempting
-            // to parse it.
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
-        } finally {
-            if (urlConnection != null) {
-                urlConnection.disconnect();
+        }
+
+        // The widgets, Muzei, the notification and the watch face only show the preferred
+        // location, so they only need to hear about changes to it.
+        if (preferredChanged > 0) {
+            long start = System.nanoTime();
+            updateWidgets();
+            passTrace.record(WeatherContract.SyncHistoryEntry.STAGE_WIDGETS, start);
+            start = System.nanoTime();
+            updateMuzei();
+            passTrace.record(WeatherContract.SyncHistoryEntry.STAGE_MUZEI, start);
+            start = System.nanoTime();
+            notifyWeather();
+            passTrace.record(WeatherContract.SyncHistoryEntry.STAGE_NOTIFICATION, start);
+            start = System.nanoTime();
+            updateWear();
+            passTrace.record(WeatherContract.SyncHistoryEntry.STAGE_WEAR, start);
+        }
+        if (canceled) {
+            // What a canceled pass saw is no measure of the server or of the weather.  Whatever
+            // it did commit has been fanned out above, since a later sync won't see it change.
+            Log.d(LOG_TAG, "Sync canceled");
+            return;
+        }
+        reschedulePeriodicSync(tier, changedDays, syncedDays);
+
+        passTrace.record(WeatherContract.SyncHistoryEntry.STAGE_SYNC, syncStartNanos, changedDays);
+        traces.add(passTrace);
+        saveSyncHistory(syncStarted, traces);
+        Log.d(LOG_TAG, "Sync Complete. " + locations.size() + " locations synced");
+    }
+
+    /**
+     * Waits a bounded time for the workers of a canceled sync to finish, even though the sync
+     * thread itself has been interrupted.
+     */
+    private void awaitWorkers(ExecutorService executor) {
+        long deadline = System.nanoTime() + CANCEL_WAIT_MILLIS * 1000000;
+        // Clear our own interrupt so that we can wait at all; the caller restores it
+        Thread.interrupted();
+        while (!executor.isTerminated()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                Log.w(LOG_TAG, "Workers of the canceled sync are still running");
+                return;
             }
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (final IOException e) {
-                    Log.e(LOG_TAG, "Error closing stream", e);
-                }
+            try {
+                executor.awaitTermination(remaining, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                // Canceled again; keep waiting out the same deadline
             }
         }
-        return;
     }
 
     /**
-     * Take the String representing the complete forecast in JSON Format and
-     * pull out the data we need to construct the Strings needed for the wireframes.
-     *
-     * Fortunately parsing is easy:  constructor takes the JSON string and converts it
-     * into an Object hierarchy for us.
+     * Stores the timings of the pass in sync_history, and drops what's too old to compare
+     * against any more.
      */
-    private void getWeatherDataFromJson(String forecastJsonStr,
-                                        String locationSetting)
-            throws JSONException {
+    private void saveSyncHistory(long syncStarted, List<SyncTrace> traces) {
+        ArrayList<ContentValues> rows = new ArrayList<ContentValues>();
+        for (SyncTrace trace : traces) {
+            rows.addAll(trace.getRows());
+        }
+        ContentResolver resolver = getContext().getContentResolver();
+        resolver.bulkInsert(WeatherContract.SyncHistoryEntry.CONTENT_URI,
+                rows.toArray(new ContentValues[rows.size()]));
+        resolver.delete(WeatherContract.SyncHistoryEntry.CONTENT_URI,
+                WeatherContract.SyncHistoryEntry.COLUMN_SYNC_STARTED + " < ?",
+                new String[]{Long.toString(syncStarted - SYNC_HISTORY_RETENTION_MILLIS)});
+    }
 
-        // Now we have a String representing the complete forecast in JSON Format.
-        // Fortunately parsing is easy:  constructor takes the JSON string and converts it
-        // into an Object hierarchy for us.
+    /**
+     * Works out the recently used locations, and evicts every other location along with its
+     * forecast.
+     *
+     * @param preferredLocation the location setting the user has chosen
+     * @return every location we keep a forecast for, with the preferred location first
+     */
+    private List<String> getTrackedLocations(String preferredLocation) {
+        ArrayList<String> storedLocations = new ArrayList<String>();
+        HashMap<String, Long> locationIds = new HashMap<String, Long>();
+        int generation = LocationIdCache.getGeneration();
+        Cursor locationCursor = getContext().getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry._ID,
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING},
+                null,
+                null,
+                WeatherContract.LocationEntry.COLUMN_LAST_USED + " DESC");
+        if (locationCursor != null) {
+            while (locationCursor.moveToNext()) {
+                storedLocations.add(locationCursor.getString(1));
+                locationIds.put(locationCursor.getString(1), locationCursor.getLong(0));
+                // Spares the pass a lookup per location later on
+                LocationIdCache.put(locationCursor.getString(1), locationCursor.getLong(0),
+                        generation);
+            }
+            locationCursor.close();
+        }
 
-        // These are the names of the JSON objects that need to be extracted.
+        RecentLocations recentLocations = new RecentLocations(preferredLocation,
+                storedLocations, RecentLocations.MAX_LOCATIONS);
+        if (!recentLocations.getEvicted().isEmpty()) {
+            evictLocations(recentLocations.getEvicted(), locationIds);
+        }
+        return recentLocations.getKept();
+    }
 
-        // Location information
-        final String OWM_CITY = "city";
-        final String OWM_CITY_NAME = "name";
-        final String OWM_COORD = "coord";
+    /**
+     * Deletes the locations with their forecasts, in one transaction since the forecast rows
+     * reference the location rows, and forgets their statuses.
+     */
+    private void evictLocations(List<String> locationSettings, Map<String, Long> locationIds) {
+        String[] ids = new String[locationSettings.size()];
+        StringBuilder placeholders = new StringBuilder();
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = Long.toString(locationIds.get(locationSettings.get(i)));
+            placeholders.append(i == 0 ? "?" : ", ?");
+        }
+        String inIds = " IN (" + placeholders + ")";
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation
+                .newDelete(WeatherContract.WeatherEntry.CONTENT_URI)
+                .withSelection(WeatherContract.WeatherEntry.COLUMN_LOC_KEY + inIds, ids)
+                .build());
+        operations.add(ContentProviderOperation
+                .newDelete(WeatherContract.IntradayEntry.CONTENT_URI)
+                .withSelection(WeatherContract.IntradayEntry.COLUMN_LOC_KEY + inIds, ids)
+                .build());
+        operations.add(ContentProviderOperation
+                .newDelete(WeatherContract.LocationEntry.CONTENT_URI)
+                .withSelection(WeatherContract.LocationEntry._ID + inIds, ids)
+                .build());
+        synchronized (mCommitLock) {
+            try {
+                getContext().getContentResolver().applyBatch(
+                        WeatherContract.CONTENT_AUTHORITY, operations);
+            } catch (RemoteException | OperationApplicationException e) {
+                Log.e(LOG_TAG, "Error evicting " + locationSettings, e);
+                return;
+            }
+        }
 
-        // Location coordinate
-        final String OWM_LATITUDE = "lat";
-        final String OWM_LONGITUDE = "lon";
+        Context context = getContext();
+        SharedPreferences.Editor editor =
+                PreferenceManager.getDefaultSharedPreferences(context).edit();
+        for (String locationSetting : locationSettings) {
+            editor.remove(Utility.getLocationStatusKey(context, locationSetting));
+        }
+        editor.commit();
+        Log.d(LOG_TAG, "Evicted " + locationSettings);
+    }
 
-        // Weather information.  Each day's forecast info is an element of the "list" array.
-        final String OWM_LIST = "list";
+    /**
+     * Stamps the location as used now, which keeps it among the recent locations once it is no
+     * longer the preferred one.  A location we don't hold yet is stamped when it is stored.
+     *
+     * Only the order of the stamps matters, so a location already used more recently than any
+     * other is left alone.  That is every sync but the first after the preferred location
+     * changes, and those then write nothing, so location observers and the provider's cached
+     * queries aren't disturbed.
+     */
+    private void markLocationUsed(String locationSetting) {
+        ContentValues locationValues = new ContentValues();
+        locationValues.put(WeatherContract.LocationEntry.COLUMN_LAST_USED,
+                System.currentTimeMillis());
+        getContext().getContentResolver().update(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                locationValues,
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+                        WeatherContract.LocationEntry.COLUMN_LAST_USED + " <= (SELECT MAX(" +
+                        WeatherContract.LocationEntry.COLUMN_LAST_USED + ") FROM " +
+                        WeatherContract.LocationEntry.TABLE_NAME + " WHERE " +
+                        WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " != ?)",
+                new String[]{locationSetting, locationSetting});
+    }
 
-        final String OWM_PRESSURE = "pressure";
-        final String OWM_HUMIDITY = "humidity";
-        final String OWM_WINDSPEED = "speed";
-        final String OWM_WIND_DIRECTION = "deg";
+    /**
+     * @return the failure tracking saved by the previous sync
+     */
+    private SyncBackoff loadBackoff() {
+        Context context = getContext();
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        return new SyncBackoff(Clock.SYSTEM, new Random(),
+                prefs.getInt(context.getString(R.string.pref_sync_failures), 0),
+                prefs.getLong(context.getString(R.string.pref_sync_retry_at), 0));
+    }
 
-        // All temperatures are children of the "temp" object.
-        final String OWM_TEMPERATURE = "temp";
-        final String OWM_MAX = "max";
-        final String OWM_MIN = "min";
+    /**
+     * Saves the failure tracking so that it survives the process being killed between syncs.
+     */
+    private void saveBackoff(SyncBackoff backoff) {
+        Context context = getContext();
+        SharedPreferences.Editor editor =
+                PreferenceManager.getDefaultSharedPreferences(context).edit();
+        editor.putInt(context.getString(R.string.pref_sync_failures), backoff.getFailureCount());
+        editor.putLong(context.getString(R.string.pref_sync_retry_at), backoff.getRetryAtMillis());
+        editor.commit();
+    }
 
-        final String OWM_WEATHER = "weather";
-        final String OWM_DESCRIPTION = "main";
-        final String OWM_WEATHER_ID = "id";
+    /**
+     * Lets SyncScheduler pick the next interval of the current tier from how much this sync
+     * changed, and reprograms that periodic sync if the interval differs from the one currently
+     * set.  The full tier runs at a fixed interval.
+     *
+     * Only current tier syncs are scored.  A full sync compares a fortnight of days after half
+     * a day away, so it almost always finds most of them changed, and mixing that in would hold
+     * the current tier near its shortest interval whatever today was doing.  A full sync still
+     * reprograms the current tier, since the interval shrinks towards midnight.
+     *
+     * @param tier the tier this sync ran as
+     * @param changedDays days written across all locations because they changed
+     * @param syncedDays days fetched successfully across all locations
+     */
+    private void reschedulePeriodicSync(int tier, int changedDays, int syncedDays) {
+        Context context = getContext();
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String volatilityKey = context.getString(R.string.pref_sync_volatility);
+        String intervalKey = context.getString(R.string.pref_sync_interval);
+        String flexTimeKey = context.getString(R.string.pref_sync_flextime);
+        String fullIntervalKey = context.getString(R.string.pref_sync_full_interval);
+
+        SyncScheduler scheduler = new SyncScheduler(Clock.SYSTEM,
+                TimeZone.getDefault(),
+                prefs.getFloat(volatilityKey, SyncScheduler.INITIAL_VOLATILITY));
+        if (tier == SYNC_TIER_CURRENT) {
+            scheduler.onSyncResult(changedDays, syncedDays);
+        }
+        int syncInterval = scheduler.getSyncInterval();
+        int flexTime = scheduler.getFlexTime();
+
+        // Installs from before the tiers had a single periodic sync fetching everything at the
+        // adaptive interval.  Move it to the full tier's interval and add the current tier.
+        boolean tiersConfigured = prefs.getInt(fullIntervalKey, 0) == FULL_SYNC_INTERVAL;
+        if (!tiersConfigured) {
+            configurePeriodicSync(context, SYNC_TIER_FULL, FULL_SYNC_INTERVAL, FULL_SYNC_FLEXTIME);
+        }
+        if (!tiersConfigured
+                || syncInterval != prefs.getInt(intervalKey, SYNC_INTERVAL)
+                || flexTime != prefs.getInt(flexTimeKey, SYNC_FLEXTIME)) {
+            Log.d(LOG_TAG, "Next sync in " + syncInterval + "s (volatility "
+                    + scheduler.getVolatility() + ")");
+            configurePeriodicSync(context, SYNC_TIER_CURRENT, syncInterval, flexTime);
+        }
 
-        final String OWM_MESSAGE_CODE = "cod";
+        SharedPreferences.Editor editor = prefs.edit();
+        editor.putFloat(volatilityKey, scheduler.getVolatility());
+        editor.putInt(intervalKey, syncInterval);
+        editor.putInt(flexTimeKey, flexTime);
+        editor.putInt(fullIntervalKey, FULL_SYNC_INTERVAL);
+        editor.commit();
+    }
 
+    /**
+     * Fetches and stores the forecast for one location.  Safe to run on several threads at
+     * once; the commit itself is serialized.
+     *
+     * @param locationQuery the location setting to sync
+     * @param tier SYNC_TIER_FULL or SYNC_TIER_CURRENT
+     * @param trace where the time spent in each stage is recorded
+     * @param cancellation checked between stages, and handed to the fetch
+     * @return the number of days that changed, or SYNC_FAILED, SYNC_SERVER_ERROR,
+     * SYNC_NETWORK_ERROR, SYNC_PARSE_ERROR or SYNC_CANCELED
+     */
+    private int syncLocation(String locationQuery, int tier, SyncTrace trace,
+                             SyncCancellation cancellation) {
+        if (cancellation.isCanceled()) {
+            return SYNC_CANCELED;
+        }
         try {
-            JSONObject forecastJson = new JSONObject(forecastJsonStr);
-
-            // do we have an error?
-            if ( forecastJson.has(OWM_MESSAGE_CODE) ) {
-                int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
-
-                switch (errorCode) {
-                    case HttpURLConnection.HTTP_OK:
-                        break;
-                    case HttpURLConnection.HTTP_NOT_FOUND:
-                        setLocationStatus(getContext(), LOCATION_STATUS_INVALID);
-                        return;
-                    default:
-                        setLocationStatus(getContext(), LOCATION_STATUS_SERVER_DOWN);
-                        return;
+            ForecastRequest request = getForecastRequest(locationQuery);
+            // We only know the city id while we hold today's forecast.  Without one there is
+            // nothing to refresh, and the location needs the whole forecast instead.
+            boolean currentOnly = tier == SYNC_TIER_CURRENT && request.cityId > 0;
+            if (currentOnly) {
+                // The stored validators are for the full response, so they're no use here
+                request = new ForecastRequest(locationQuery, request.cityId, null, null,
+                        CURRENT_DAYS);
+            }
+            Forecast forecast = mWeatherSource.fetchForecast(request, trace, cancellation);
+            switch (forecast.status) {
+                case Forecast.STATUS_OK: {
+                    if (currentOnly) {
+                        return storeCurrentConditions(locationQuery, forecast, trace,
+                                cancellation);
+                    }
+                    int changed = storeForecast(locationQuery, forecast, trace, cancellation);
+                    if (changed >= 0) {
+                        syncIntraday(locationQuery, forecast.cityId, trace, cancellation);
+                    }
+                    return changed;
                 }
+                case Forecast.STATUS_NOT_MODIFIED:
+                    // What we have stored is still current.  Nothing to write or broadcast.
+                    Log.d(LOG_TAG, "Forecast for " + locationQuery + " not modified");
+                    setLocationStatus(getContext(), locationQuery, LOCATION_STATUS_OK);
+                    // The 3-hour forecast may have moved on even though the daily one hasn't
+                    syncIntraday(locationQuery, request.cityId, trace, cancellation);
+                    return 0;
+                case Forecast.STATUS_NOT_FOUND:
+                    setLocationStatus(getContext(), locationQuery, LOCATION_STATUS_INVALID);
+                    return SYNC_FAILED;
+                case Forecast.STATUS_SERVER_ERROR:
+                    setLocationStatus(getContext(), locationQuery, LOCATION_STATUS_SERVER_DOWN);
+                    return SYNC_SERVER_ERROR;
+                default:
+                    setLocationStatus(getContext(), locationQuery, LOCATION_STATUS_SERVER_DOWN);
+                    return SYNC_FAILED;
             }
+        } catch (SyncCanceledException e) {
+            // Leaves the location status alone: we learned nothing about the location
+            Log.d(LOG_TAG, "Sync of " + locationQuery + " canceled");
+            return SYNC_CANCELED;
+        } catch (IOException e) {
+            // Includes timeouts, refused connections, and streams that were empty or cut short
+            Log.e(LOG_TAG, "Error ", e);
+            // If the code didn't successfully get the weather data, there's no point in attempting
+            // to parse it.
+            setLocationStatus(getContext(), locationQuery, LOCATION_STATUS_SERVER_DOWN);
+            return SyncBackoff.isServerFailure(e) ? SYNC_SERVER_ERROR : SYNC_NETWORK_ERROR;
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+            e.printStackTrace();
+            setLocationStatus(getContext(), locationQuery, LOCATION_STATUS_SERVER_INVALID);
+            return SYNC_PARSE_ERROR;
+        }
+    }
 
-            JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
-
-            JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
-            String cityName = cityJson.getString(OWM_CITY_NAME);
-
-            JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-            double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-            double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
-
-            long locationId = addLocation(locationSetting, cityName, cityLatitude, cityLongitude);
+    /**
+     * Stores a forecast the source returned for the location.
+     *
+     * The cache validators are saved in the same batch as the rows, so a failed sync can never
+     * leave us answering 304 for data we don't have.
+     *
+     * Package-private so that TestForecastDiff can store forecasts without a server.
+     *
+     * @return the number of days that changed, or SYNC_FAILED or SYNC_CANCELED
+     */
+    int storeForecast(String locationSetting, Forecast forecast, SyncTrace trace,
+                              SyncCancellation cancellation) {
+        // The whole sync is committed as one batch: one transaction in the provider and one
+        // notification per changed URI, so observers never requery half-applied state.
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        long start = System.nanoTime();
+        long locationId = addLocation(operations, locationSetting, forecast.cityId,
+                forecast.cityName, forecast.cityLatitude, forecast.cityLongitude,
+                forecast.eTag, forecast.lastModified);
+        trace.record(WeatherContract.SyncHistoryEntry.STAGE_ADD_LOCATION, start);
+
+        // The days go to the provider as primitives, not as a ContentValues each
+        WeatherRows rows = new WeatherRows(forecast.days.size());
+        if (locationId == NEW_LOCATION_ID) {
+            // The location row is inserted by the first operation of this batch
+            rows.setLocationBackReference(0);
+        } else {
+            rows.setLocationId(locationId);
+        }
+        // add to database
+        if ( forecast.days.size() > 0 ) {
+            // Only write the days that differ from what we already have.  An unchanged
+            // forecast then costs no writes, no notifyChange and no fan-out at all.
+            start = System.nanoTime();
+            List<DayForecast> changedDays = locationId == NEW_LOCATION_ID
+                    ? forecast.days : getChangedDays(locationId, forecast.days);
+            trace.record(WeatherContract.SyncHistoryEntry.STAGE_DIFF, start,
+                    changedDays.size());
+            for (DayForecast day : changedDays) {
+                rows.add(day.date, day.weatherId, day.description, day.low, day.high,
+                        day.humidity, day.pressure, day.windSpeed, day.windDirection);
+            }
 
-            // Insert the new weather information into the database
-            Vector<ContentValues> cVVector = new Vector<ContentValues>(weatherArray.length());
+            // delete old data so we don't build up an endless history.  The first day is
+            // today, so anything up to yesterday goes.
+            operations.add(ContentProviderOperation
+                    .newDelete(WeatherContract.WeatherEntry.CONTENT_URI)
+                    .withSelection(WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
+                            new String[] {Long.toString(
+                                    forecast.days.get(0).date - DAY_IN_MILLIS)})
+                    .build());
+        }
 
-            // OWM returns daily forecasts based upon the local time of the city that is being
-            // asked for, which means that we need to know the GMT offset to translate this data
-            // properly.
+        // Locations are fetched in parallel but committed one at a time
+        synchronized (mCommitLock) {
+            // A forecast that waited out a cancel for the lock must not land after all
+            if (cancellation.isCanceled()) {
+                return SYNC_CANCELED;
+            }
+            try {
+                start = System.nanoTime();
+                ContentProviderResult[] results =
+                        rows.applyWith(getContext().getContentResolver(), operations);
+                trace.record(WeatherContract.SyncHistoryEntry.STAGE_COMMIT, start,
+                        countRowsWritten(results) + rows.size());
+            } catch (RemoteException | OperationApplicationException e) {
+                // The provider rolls back a batch whose thread was interrupted by the cancel
+                if (cancellation.isCanceled()) {
+                    return SYNC_CANCELED;
+                }
+                Log.e(LOG_TAG, "Error storing forecast for " + locationSetting, e);
+                return SYNC_FAILED;
+            }
+        }
 
-            // Since this data is also sent in-order and the first day is always the
-            // current day, we're going to take advantage of that to get a nice
-            // normalized UTC date for all of our weather.
+        Log.d(LOG_TAG, locationSetting + ": " + rows.size() + " of " + forecast.days.size()
+                + " days changed");
+        setLocationStatus(getContext(), locationSetting, LOCATION_STATUS_OK);
+        return rows.size();
+    }
 
-            Time dayTime = new Time();
-            dayTime.setToNow();
+    /**
+     * Stores a refresh of today's weather for a location we already hold a forecast for.  Only
+     * today's row is written, and only if it changed; the location row, its validators and the
+     * rest of the forecast are left as the last full sync stored them.
+     *
+     * @return 1 if today changed, 0 if it didn't, or SYNC_FAILED or SYNC_CANCELED
+     */
+    private int storeCurrentConditions(String locationSetting, Forecast forecast,
+                                       SyncTrace trace, SyncCancellation cancellation) {
+        long start = System.nanoTime();
+        long locationId = getLocationId(locationSetting);
+        trace.record(WeatherContract.SyncHistoryEntry.STAGE_ADD_LOCATION, start);
+        if (locationId == NEW_LOCATION_ID || forecast.days.isEmpty()) {
+            return SYNC_FAILED;
+        }
 
-            // we start at the day returned by local time. Otherwise this is a mess.
-            int julianStartDay = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+        start = System.nanoTime();
+        List<DayForecast> changedDays =
+                getChangedDays(locationId, forecast.days.subList(0, 1));
+        trace.record(WeatherContract.SyncHistoryEntry.STAGE_DIFF, start, changedDays.size());
+        if (changedDays.size() > 0) {
+            ContentValues today = toContentValues(changedDays.get(0));
+            today.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
+            synchronized (mCommitLock) {
+                if (cancellation.isCanceled()) {
+                    return SYNC_CANCELED;
+                }
+                start = System.nanoTime();
+                // The (date, location) constraint replaces the stored row
+                getContext().getContentResolver().insert(
+                        WeatherContract.WeatherEntry.CONTENT_URI, today);
+                trace.record(WeatherContract.SyncHistoryEntry.STAGE_COMMIT, start, 1);
+            }
+        }
 
-            // now we work exclusively in UTC
-            dayTime = new Time();
+        Log.d(LOG_TAG, locationSetting + ": today " + (changedDays.size() > 0
+                ? "changed" : "unchanged"));
+        setLocationStatus(getContext(), locationSetting, LOCATION_STATUS_OK);
+        return changedDays.size();
+    }
 
-            for(int i = 0; i < weatherArray.length(); i++) {
-                // These are the values that will be collected.
-                long dateTime;
-                double pressure;
-                int humidity;
-                double windSpeed;
-                double windDirection;
+    /**
+     * Fetches and stores the 3-hour forecast of a location whose daily forecast is up to date,
+     * unless the stored one is still current.  Failures are only logged: nothing the app shows
+     * yet depends on it, and the daily forecast counts as synced either way.
+     */
+    private void syncIntraday(String locationSetting, long cityId, SyncTrace trace,
+                              SyncCancellation cancellation) {
+        // Nothing validates the 3-hour fetch, so this is what spares it when nothing moved on
+        if (isIntradayCurrent(getNewestSlotStart(locationSetting), System.currentTimeMillis())) {
+            Log.d(LOG_TAG, "3-hour forecast for " + locationSetting + " still current");
+            return;
+        }
+        long start = System.nanoTime();
+        // The fetch gets a trace of its own so that its stages don't mix with the daily ones
+        SyncTrace fetchTrace = new SyncTrace(0, locationSetting);
+        try {
+            Forecast forecast = mWeatherSource.fetchIntraday(
+                    new ForecastRequest(locationSetting, cityId, null, null, INTRADAY_DAYS),
+                    fetchTrace, cancellation);
+            if (forecast.status != Forecast.STATUS_OK) {
+                Log.w(LOG_TAG, "No 3-hour forecast for " + locationSetting + " (status "
+                        + forecast.status + ")");
+                return;
+            }
+            int rows = storeIntraday(locationSetting, forecast, cancellation);
+            trace.record(WeatherContract.SyncHistoryEntry.STAGE_INTRADAY, start, rows);
+        } catch (SyncCanceledException e) {
+            Log.d(LOG_TAG, "3-hour forecast for " + locationSetting + " canceled");
+        } catch (IOException | JSONException e) {
+            Log.e(LOG_TAG, "Error syncing 3-hour forecast for " + locationSetting, e);
+        } catch (RemoteException | OperationApplicationException e) {
+            if (!cancellation.isCanceled()) {
+                Log.e(LOG_TAG, "Error storing 3-hour forecast for " + locationSetting, e);
+            }
+        }
+    }
 
-                double high;
-                double low;
+    /**
+     * The feed starts at the step under way or the next one and runs for INTRADAY_DAYS, so a
+     * fetch ends at least that many steps, less one, ahead of the time it was made.  Allowing
+     * one step more, what we hold is refetched once the feed has moved on a step past it.
+     *
+     * @param newestSlotStart when the last stored slot starts, or 0 if there are none
+     * @return whether fetching the 3-hour forecast now would bring nothing new
+     */
+    static boolean isIntradayCurrent(long newestSlotStart, long now) {
+        int steps = INTRADAY_DAYS * WeatherContract.IntradayEntry.SLOTS_PER_DAY;
+        return newestSlotStart >= now + (steps - 2) * INTRADAY_STEP_MILLIS;
+    }
 
-                String description;
-                int weatherId;
+    /**
+     * @return when the last stored 3-hour slot of the location starts, or 0 if it has none
+     */
+    private long getNewestSlotStart(String locationSetting) {
+        long locationId = getLocationId(locationSetting);
+        if (locationId == NEW_LOCATION_ID) {
+            return 0;
+        }
+        // Answered from the (location, slot_start) key without touching the rows
+        Cursor cursor = getContext().getContentResolver().query(
+                WeatherContract.IntradayEntry.CONTENT_URI,
+                new String[]{"MAX(" + WeatherContract.IntradayEntry.COLUMN_SLOT_START + ")"},
+                WeatherContract.IntradayEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(locationId)},
+                null);
+        try {
+            // MAX of no rows is NULL, which reads as 0
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
 
-                // Get the JSON object representing the day
-                JSONObject dayForecast = weatherArray.getJSONObject(i);
+    /**
+     * Replaces the stored slots of the location with the ones in the forecast, and drops the
+     * slots of days that are over.
+     *
+     * @return the number of slots stored
+     */
+    private int storeIntraday(String locationSetting, Forecast forecast,
+                              SyncCancellation cancellation)
+            throws RemoteException, OperationApplicationException, SyncCanceledException {
+        long locationId = getLocationId(locationSetting);
+        if (locationId == NEW_LOCATION_ID || forecast.slots.isEmpty()) {
+            return 0;
+        }
 
-                // Cheating to convert this to UTC time, which is what we want anyhow
-                dateTime = dayTime.setJulianDay(julianStartDay+i);
+        ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(forecast.slots.size() + 1);
+        long firstDate = WeatherContract.normalizeDate(forecast.slots.get(0).time);
+        operations.add(ContentProviderOperation
+                .newDelete(WeatherContract.IntradayEntry.CONTENT_URI)
+                .withSelection(WeatherContract.IntradayEntry.COLUMN_LOC_KEY + " = ? AND " +
+                                WeatherContract.IntradayEntry.COLUMN_DATE + " < ?",
+                        new String[]{Long.toString(locationId), Long.toString(firstDate)})
+                .build());
+        for (SlotForecast slot : forecast.slots) {
+            operations.add(ContentProviderOperation
+                    .newInsert(WeatherContract.IntradayEntry.CONTENT_URI)
+                    .withValues(toContentValues(locationId, slot))
+                    .build());
+        }
 
-                pressure = dayForecast.getDouble(OWM_PRESSURE);
-                humidity = dayForecast.getInt(OWM_HUMIDITY);
-                windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-                windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
+        // Slots already stored are replaced through the UNIQUE constraint.  Deleting and
+        // inserting in one transaction means readers never see half a forecast.
+        synchronized (mCommitLock) {
+            cancellation.throwIfCanceled();
+            getContext().getContentResolver().applyBatch(
+                    WeatherContract.CONTENT_AUTHORITY, operations);
+        }
+        return forecast.slots.size();
+    }
 
-                // Description is in a child array called "weather", which is 1 element long.
-                // That element also contains a weather code.
-                JSONObject weatherObject =
-                        dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-                description = weatherObject.getString(OWM_DESCRIPTION);
-                weatherId = weatherObject.getInt(OWM_WEATHER_ID);
+    private static ContentValues toContentValues(long locationId, SlotForecast slot) {
+        ContentValues slotValues = new ContentValues();
+        slotValues.put(WeatherContract.IntradayEntry.COLUMN_LOC_KEY, locationId);
+        slotValues.put(WeatherContract.IntradayEntry.COLUMN_DATE,
+                WeatherContract.normalizeDate(slot.time));
+        slotValues.put(WeatherContract.IntradayEntry.COLUMN_SLOT_START, slot.time);
+        slotValues.put(WeatherContract.IntradayEntry.COLUMN_WEATHER_ID, slot.weatherId);
+        slotValues.put(WeatherContract.IntradayEntry.COLUMN_TEMP,
+                WeatherContract.IntradayEntry.toScaled(slot.temperature,
+                        WeatherContract.IntradayEntry.TEMP_SCALE));
+        slotValues.put(WeatherContract.IntradayEntry.COLUMN_HUMIDITY, slot.humidity);
+        slotValues.put(WeatherContract.IntradayEntry.COLUMN_PRESSURE,
+                WeatherContract.IntradayEntry.toScaled(slot.pressure,
+                        WeatherContract.IntradayEntry.PRESSURE_SCALE));
+        slotValues.put(WeatherContract.IntradayEntry.COLUMN_WIND_SPEED,
+                WeatherContract.IntradayEntry.toScaled(slot.windSpeed,
+                        WeatherContract.IntradayEntry.WIND_SPEED_SCALE));
+        slotValues.put(WeatherContract.IntradayEntry.COLUMN_DEGREES,
+                (int) Math.round(slot.windDirection));
+        return slotValues;
+    }
 
-                // Temperatures are in a child object called "temp".  Try not to name variables
-                // "temp" when working with temperature.  It confuses everybody.
-                JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-                high = temperatureObject.getDouble(OWM_MAX);
-                low = temperatureObject.getDouble(OWM_MIN);
+    private static ContentValues toContentValues(DayForecast day) {
+        ContentValues weatherValues = new ContentValues();
 
-                ContentValues weatherValues = new ContentValues();
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, day.date);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, day.humidity);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, day.pressure);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, day.windSpeed);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, day.windDirection);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, day.high);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, day.low);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, day.description);
+        weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, day.weatherId);
 
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_LOC_KEY, locationId);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTime);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_SHORT_DESC, description);
-                weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
+        return weatherValues;
+    }
 
-                cVVector.add(weatherValues);
+    /**
+     * @return how many rows a batch inserted, updated or deleted
+     */
+    private static int countRowsWritten(ContentProviderResult[] results) {
+        int rows = 0;
+        for (ContentProviderResult result : results) {
+            if (result.count != null) {
+                rows += result.count;
+            } else if (result.uri != null) {
+                rows++;
             }
+        }
+        return rows;
+    }
 
-            int inserted = 0;
-            // add to database
-            if ( cVVector.size() > 0 ) {
-                ContentValues[] cvArray = new ContentValues[cVVector.size()];
-                cVVector.toArray(cvArray);
-                getContext().getContentResolver().bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, cvArray);
-
-                // delete old data so we don't build up an endless history
-                getContext().getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " <= ?",
-                        new String[] {Long.toString(dayTime.setJulianDay(julianStartDay-1))});
-
-                updateWidgets();
-                updateMuzei();
-                notifyWeather();
-                updateWear();
-            }
-            Log.d(LOG_TAG, "Sync Complete. " + cVVector.size() + " Inserted");
-            setLocationStatus(getContext(), LOCATION_STATUS_OK);
+    /**
+     * Compares the incoming days field by field with the rows stored for the location.
+     *
+     * @param locationId the row ID of the location the days belong to
+     * @param incoming the parsed days, in date order
+     * @return only the days that are new or differ from what is stored
+     */
+    private List<DayForecast> getChangedDays(long locationId, List<DayForecast> incoming) {
+        long firstDate = incoming.get(0).date;
+        Cursor storedCursor = getContext().getContentResolver().query(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                FORECAST_DIFF_PROJECTION,
+                WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+                        WeatherContract.WeatherEntry.COLUMN_DATE + " >= ?",
+                new String[]{Long.toString(locationId), Long.toString(firstDate)},
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        if (storedCursor == null) {
+            return incoming;
+        }
 
-        } catch (JSONException e) {
-            Log.e(LOG_TAG, e.getMessage(), e);
-            e.printStackTrace();
-            setLocationStatus(getContext(), LOCATION_STATUS_SERVER_INVALID);
+        ArrayList<DayForecast> changedDays = new ArrayList<DayForecast>(incoming.size());
+        try {
+            // Both are in date order, so the stored rows are walked alongside the incoming
+            // days instead of being copied out of the cursor
+            boolean hasStored = storedCursor.moveToFirst();
+            for (DayForecast day : incoming) {
+                while (hasStored && storedCursor.getLong(INDEX_DIFF_DATE) < day.date) {
+                    hasStored = storedCursor.moveToNext();
+                }
+                if (!hasStored || storedCursor.getLong(INDEX_DIFF_DATE) != day.date
+                        || !isSameDay(storedCursor, day)) {
+                    changedDays.add(day);
+                }
+            }
+        } finally {
+            storedCursor.close();
         }
+        return changedDays;
+    }
+
+    // Reads the REALs as doubles; going through strings would round them.
+    private static boolean isSameDay(Cursor stored, DayForecast incoming) {
+        return stored.getDouble(INDEX_DIFF_MIN_TEMP) == incoming.low
+                && stored.getDouble(INDEX_DIFF_MAX_TEMP) == incoming.high
+                && stored.getDouble(INDEX_DIFF_HUMIDITY) == incoming.humidity
+                && stored.getDouble(INDEX_DIFF_PRESSURE) == incoming.pressure
+                && stored.getDouble(INDEX_DIFF_WIND_SPEED) == incoming.windSpeed
+                && stored.getDouble(INDEX_DIFF_DEGREES) == incoming.windDirection
+                && stored.getInt(INDEX_DIFF_WEATHER_ID) == incoming.weatherId
+                && stored.getString(INDEX_DIFF_SHORT_DESC).equals(incoming.description);
     }
 
     private void updateWidgets() {
@@ -429,6 +1100,7 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
                                 .load(artUrl)
                                 .asBitmap()
                                 .error(artResourceId)
+                                .diskCacheStrategy(DiskCacheStrategy.ALL)
                                 .fitCenter()
                                 .into(largeIconWidth, largeIconHeight).get();
                     } catch (InterruptedException | ExecutionException e) {
@@ -493,30 +1165,89 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
     }
 
     /**
-     * Helper method to handle insertion of a new location in the weather database.
+     * Looks up the OWM city id and the cache validators stored with the location.  They're only
+     * used while we still hold today's forecast for the location, since a 304 tells us to keep
+     * showing what we have.
      *
+     * @return the request for the location's whole forecast, carrying what we know about it if
+     * we hold a forecast for today
+     */
+    private ForecastRequest getForecastRequest(String locationSetting) {
+        Context context = getContext();
+        Cursor todayCursor = context.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocationWithDate(
+                        locationSetting, System.currentTimeMillis()),
+                CACHED_LOCATION_PROJECTION,
+                null,
+                null,
+                null);
+        if (todayCursor == null) {
+            return new ForecastRequest(locationSetting, 0, null, null, FORECAST_DAYS);
+        }
+        try {
+            if (!todayCursor.moveToFirst()) {
+                return new ForecastRequest(locationSetting, 0, null, null, FORECAST_DAYS);
+            }
+            return new ForecastRequest(locationSetting,
+                    todayCursor.getLong(INDEX_CITY_ID),
+                    todayCursor.getString(INDEX_ETAG),
+                    todayCursor.getString(INDEX_LAST_MODIFIED),
+                    FORECAST_DAYS);
+        } finally {
+            todayCursor.close();
+        }
+    }
+
+    /**
+     * Builds the update that remembers the city id and the validators the server sent with the
+     * forecast we're storing (clearing validators it didn't send).  The row is only touched when
+     * they differ from what is stored, so that an unchanged sync doesn't notify location
+     * observers either.
+     */
+    private static ContentProviderOperation newLocationUpdate(long locationId, long cityId,
+                                                              String eTag, String lastModified) {
+        return ContentProviderOperation.newUpdate(WeatherContract.LocationEntry.CONTENT_URI)
+                .withValue(WeatherContract.LocationEntry.COLUMN_CITY_ID, cityId)
+                .withValue(WeatherContract.LocationEntry.COLUMN_ETAG, eTag)
+                .withValue(WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED, lastModified)
+                .withSelection(WeatherContract.LocationEntry._ID + " = ? AND (IFNULL(" +
+                                WeatherContract.LocationEntry.COLUMN_CITY_ID + ", 0) != ? OR IFNULL(" +
+                                WeatherContract.LocationEntry.COLUMN_ETAG + ", '') != ? OR IFNULL(" +
+                                WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED + ", '') != ?)",
+                        new String[]{Long.toString(locationId),
+                                Long.toString(cityId),
+                                eTag == null ? "" : eTag,
+                                lastModified == null ? "" : lastModified})
+                .build();
+    }
+
+    /**
+     * Helper method to handle insertion of a new location in the weather database.  Nothing is
+     * written here: the insert (or the validator update for a known location) is queued onto
+     * the batch that commits the rest of the sync.
+     *
+     * @param operations The batch the location operation is added to.  For a new location it
+     *                   must still be empty, so that weather rows can back-reference index 0.
      * @param locationSetting The location string used to request updates from the server.
+     * @param cityId OpenWeatherMap's id for the city
      * @param cityName A human-readable city name, e.g "Mountain View"
      * @param lat the latitude of the city
      * @param lon the longitude of the city
-     * @return the row ID of the added location.
+     * @param eTag the ETag of the forecast being stored, or null
+     * @param lastModified the Last-Modified of the forecast being stored, or null
+     * @return the row ID of the existing location, or NEW_LOCATION_ID if it is inserted by the
+     * first operation of the batch.
      */
-    long addLocation(String locationSetting, String cityName, double lat, double lon) {
-        long locationId;
-
-        // First, check if the location with this city name exists in the db
-        Cursor locationCursor = getContext().getContentResolver().query(
-                WeatherContract.LocationEntry.CONTENT_URI,
-                new String[]{WeatherContract.LocationEntry._ID},
-                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
-                new String[]{locationSetting},
-                null);
-
-        if (locationCursor.moveToFirst()) {
-            int locationIdIndex = locationCursor.getColumnIndex(WeatherContract.LocationEntry._ID);
-            locationId = locationCursor.getLong(locationIdIndex);
+    long addLocation(ArrayList<ContentProviderOperation> operations, String locationSetting,
+                     long cityId, String cityName, double lat, double lon,
+                     String eTag, String lastModified) {
+        // First, check if the location with this city name exists in the db.  Usually this is
+        // answered from LocationIdCache without a query.
+        long locationId = getLocationId(locationSetting);
+
+        if (locationId != NEW_LOCATION_ID) {
+            operations.add(newLocationUpdate(locationId, cityId, eTag, lastModified));
         } else {
-            // Now that the content provider is set up, inserting rows of data is pretty simple.
             // First create a ContentValues object to hold the data you want to insert.
             ContentValues locationValues = new ContentValues();
 
@@ -526,53 +1257,145 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
             locationValues.put(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
             locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LAT, lat);
             locationValues.put(WeatherContract.LocationEntry.COLUMN_COORD_LONG, lon);
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_CITY_ID, cityId);
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_ETAG, eTag);
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_LAST_MODIFIED, lastModified);
+            // Only the preferred location is ever new to us
+            locationValues.put(WeatherContract.LocationEntry.COLUMN_LAST_USED,
+                    System.currentTimeMillis());
+
+            // If the location turns up between our lookup and the commit, the batch takes over
+            // the stored row instead of failing on the UNIQUE location setting
+            operations.add(ContentProviderOperation
+                    .newInsert(WeatherContract.LocationEntry.buildLocationInsertOrIgnoreUri())
+                    .withValues(locationValues)
+                    .build());
+        }
+        return locationId;
+    }
 
-            // Finally, insert location data into the database.
-            Uri insertedUri = getContext().getContentResolver().insert(
-                    WeatherContract.LocationEntry.CONTENT_URI,
-                    locationValues
-            );
-
-            // The resulting URI contains the ID for the row.  Extract the locationId from the Uri.
-            locationId = ContentUris.parseId(insertedUri);
+    /**
+     * @return the row ID of the location, or NEW_LOCATION_ID if it isn't in the db yet
+     */
+    private long getLocationId(String locationSetting) {
+        long locationId = LocationIdCache.get(locationSetting);
+        if (locationId != LocationIdCache.MISSING) {
+            return locationId;
         }
 
-        locationCursor.close();
-        // Wait, that worked?  Yes!
+        int generation = LocationIdCache.getGeneration();
+        Cursor locationCursor = getContext().getContentResolver().query(
+                WeatherContract.LocationEntry.CONTENT_URI,
+                new String[]{WeatherContract.LocationEntry._ID},
+                WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{locationSetting},
+                null);
+        try {
+            if (!locationCursor.moveToFirst()) {
+                return NEW_LOCATION_ID;
+            }
+            locationId = locationCursor.getLong(0);
+        } finally {
+            locationCursor.close();
+        }
+        LocationIdCache.put(locationSetting, locationId, generation);
         return locationId;
     }
 
     /**
-     * Helper method to schedule the sync adapter periodic execution
+     * Helper method to schedule the sync adapter periodic execution.  Each tier is its own
+     * periodic sync, told apart by its extras.
+     *
+     * @param tier SYNC_TIER_FULL or SYNC_TIER_CURRENT
      */
-    public static void configurePeriodicSync(Context context, int syncInterval, int flexTime) {
+    public static void configurePeriodicSync(Context context, int tier, int syncInterval,
+                                             int flexTime) {
         Account account = getSyncAccount(context);
         String authority = context.getString(R.string.content_authority);
+        // The full tier keeps the empty extras of the one periodic sync we used to have, so that
+        // programming it replaces that sync rather than adding to it
+        Bundle extras = new Bundle();
+        if (tier != SYNC_TIER_FULL) {
+            extras.putInt(EXTRA_SYNC_TIER, tier);
+        }
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
             // we can enable inexact timers in our periodic sync
             SyncRequest request = new SyncRequest.Builder().
                     syncPeriodic(syncInterval, flexTime).
                     setSyncAdapter(account, authority).
-                    setExtras(new Bundle()).build();
+                    setExtras(extras).build();
             ContentResolver.requestSync(request);
         } else {
             ContentResolver.addPeriodicSync(account,
-                    authority, new Bundle(), syncInterval);
+                    authority, extras, syncInterval);
         }
     }
 
     /**
-     * Helper method to have the sync adapter sync immediately
+     * Cancels the sync that is running, if any, along with any that are waiting to run.  The
+     * periodic syncs are left as they are.  Use it when what is being synced is no longer
+     * wanted, so that it doesn't hold up the sync that replaces it.
+     */
+    public static void cancelSync(Context context) {
+        SyncRequestCoalescer.getInstance(context).onSyncCanceled();
+        ContentResolver.cancelSync(getSyncAccount(context),
+                context.getString(R.string.content_authority));
+    }
+
+    /**
+     * Helper method to have the sync adapter sync the preferred location immediately.  Calls
+     * made in quick succession, or while that location is already syncing, are coalesced into
+     * a single sync.
      * @param context The context used to access the account service
      */
     public static void syncImmediately(Context context) {
+        SyncRequestCoalescer.getInstance(context).request(Utility.getPreferredLocation(context));
+    }
+
+    /**
+     * Requests an expedited sync of a single location right away.  Use syncImmediately, which
+     * coalesces requests, rather than calling this directly.
+     */
+    static void requestLocationSync(Context context, String locationSetting) {
         Bundle bundle = new Bundle();
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_EXPEDITED, true);
         bundle.putBoolean(ContentResolver.SYNC_EXTRAS_MANUAL, true);
+        bundle.putString(EXTRA_LOCATION_SETTING, locationSetting);
         ContentResolver.requestSync(getSyncAccount(context),
                 context.getString(R.string.content_authority), bundle);
     }
 
+    /**
+     * Remembers whether SyncPolicy held something back, and listens for the conditions to run
+     * it in only while it did.
+     */
+    private static synchronized void setSyncDeferred(Context context, boolean deferred) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String deferredKey = context.getString(R.string.pref_sync_deferred);
+        if (prefs.getBoolean(deferredKey, false) == deferred) {
+            return;
+        }
+        prefs.edit().putBoolean(deferredKey, deferred).commit();
+        DeferredSyncReceiver.setEnabled(context, deferred);
+    }
+
+    /**
+     * Requests the one full sync that catches up everything SyncPolicy held back.  Called by
+     * DeferredSyncReceiver once conditions allow it; does nothing if an earlier call or a
+     * periodic sync got there first.
+     */
+    static synchronized void runDeferredSync(Context context) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        if (!prefs.getBoolean(context.getString(R.string.pref_sync_deferred), false)) {
+            return;
+        }
+        setSyncDeferred(context, false);
+        Bundle extras = new Bundle();
+        extras.putInt(EXTRA_SYNC_TIER, SYNC_TIER_FULL);
+        ContentResolver.requestSync(getSyncAccount(context),
+                context.getString(R.string.content_authority), extras);
+    }
+
     /**
      * Helper method to get the fake account to be used with SyncAdapter, or make a new one
      * if the fake account doesn't exist yet.  If we make a new account, we call the
@@ -616,7 +1439,10 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
         /*
          * Since we've created an account
          */
-        SunshineSyncAdapter.configurePeriodicSync(context, SYNC_INTERVAL, SYNC_FLEXTIME);
+        SunshineSyncAdapter.configurePeriodicSync(context, SYNC_TIER_FULL,
+                FULL_SYNC_INTERVAL, FULL_SYNC_FLEXTIME);
+        SunshineSyncAdapter.configurePeriodicSync(context, SYNC_TIER_CURRENT,
+                SYNC_INTERVAL, SYNC_FLEXTIME);
 
         /*
          * Without calling setSyncAutomatically, our periodic sync will not be enabled.
@@ -637,12 +1463,14 @@ public class SunshineSyncAdapter extends AbstractThreadedSyncAdapter {
      * Sets the location status into shared preference.  This function should not be called from
      * the UI thread because it uses commit to write to the shared preferences.
      * @param c Context to get the PreferenceManager from.
+     * @param locationSetting The location the status belongs to
      * @param locationStatus The IntDef value to set
      */
-    static private void setLocationStatus(Context c, @LocationStatus int locationStatus){
+    static private void setLocationStatus(Context c, String locationSetting,
+                                          @LocationStatus int locationStatus){
         SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(c);
         SharedPreferences.Editor spe = sp.edit();
-        spe.putInt(c.getString(R.string.pref_location_status_key), locationStatus);
+        spe.putInt(Utility.getLocationStatusKey(c, locationSetting), locationStatus);
         spe.commit();
     }
 }
\ No newline at end of file
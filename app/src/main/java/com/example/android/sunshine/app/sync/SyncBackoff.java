@@ -0,0 +1,93 @@
+package com.example.android.sunshine.app.sync;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+
+/**
+ * Tracks consecutive sync passes that failed because the weather server was broken (5xx
+ * responses and timeouts), and decides when to try again.  Being offline says nothing about
+ * the server, so it doesn't count: the circuit would otherwise stay open, manual refreshes
+ * included, for hours after the device got its connection back.
+ *
+ * Each failure pushes the next attempt back exponentially, with jitter so that devices which
+ * failed together don't all retry together.  After CIRCUIT_THRESHOLD failures in a row the
+ * circuit opens: every sync, manual ones included, is skipped until the retry time.  The first
+ * pass after that is a trial; success closes the circuit and failure opens it for longer.
+ *
+ * The state is two numbers, so the adapter can keep it in SharedPreferences across process
+ * death and rebuild this object on every sync.
+ */
+public class SyncBackoff {
+
+    static final long BASE_DELAY_MILLIS = 60 * 1000;
+    static final long MAX_DELAY_MILLIS = 6 * 60 * 60 * 1000;
+    static final int CIRCUIT_THRESHOLD = 3;
+
+    private final Clock mClock;
+    private final Random mRandom;
+    private int mFailureCount;
+    private long mRetryAtMillis;
+
+    /**
+     * @param clock where the current time comes from
+     * @param random source of the jitter
+     * @param failureCount consecutive failures saved from the last sync, or 0
+     * @param retryAtMillis the retry time saved from the last sync, or 0
+     */
+    public SyncBackoff(Clock clock, Random random, int failureCount, long retryAtMillis) {
+        mClock = clock;
+        mRandom = random;
+        mFailureCount = failureCount;
+        mRetryAtMillis = retryAtMillis;
+    }
+
+    /**
+     * @return true if the server has failed often enough that we shouldn't even try yet
+     */
+    public boolean isCircuitOpen() {
+        return mFailureCount >= CIRCUIT_THRESHOLD
+                && mClock.currentTimeMillis() < mRetryAtMillis;
+    }
+
+    /**
+     * Records a pass in which the server failed for every location.
+     *
+     * @return when the next attempt should be made, in milliseconds since the epoch
+     */
+    public long onFailure() {
+        mFailureCount++;
+        // Cap the shift; MAX_DELAY_MILLIS is reached long before it matters
+        long delay = Math.min(MAX_DELAY_MILLIS,
+                BASE_DELAY_MILLIS << Math.min(mFailureCount - 1, 20));
+        // Equal jitter: at least half the delay, so the backoff still grows
+        long jittered = delay / 2 + (long) (mRandom.nextDouble() * (delay / 2));
+        mRetryAtMillis = mClock.currentTimeMillis() + jittered;
+        return mRetryAtMillis;
+    }
+
+    /**
+     * Records a pass in which the server answered for at least one location.
+     */
+    public void onSuccess() {
+        mFailureCount = 0;
+        mRetryAtMillis = 0;
+    }
+
+    /**
+     * @return whether the error counts against the server.  A timeout means we reached it and
+     * it didn't answer; anything else, like an unknown host or no route to it, is as likely to
+     * be our own connection.
+     */
+    public static boolean isServerFailure(IOException e) {
+        return e instanceof SocketTimeoutException;
+    }
+
+    public int getFailureCount() {
+        return mFailureCount;
+    }
+
+    public long getRetryAtMillis() {
+        return mRetryAtMillis;
+    }
+}
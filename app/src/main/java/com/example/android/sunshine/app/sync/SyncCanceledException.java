@@ -0,0 +1,15 @@
+package com.example.android.sunshine.app.sync;
+
+import java.io.IOException;
+
+/**
+ * Thrown out of a fetch when the sync it belongs to was canceled.  It is an IOException so that
+ * it leaves the parsers and the connection the way any failed read does, but callers should
+ * catch it first: a canceled fetch says nothing about the server.
+ */
+public class SyncCanceledException extends IOException {
+
+    public SyncCanceledException() {
+        super("Sync canceled");
+    }
+}
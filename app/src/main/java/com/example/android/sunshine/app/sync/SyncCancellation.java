@@ -0,0 +1,65 @@
+package com.example.android.sunshine.app.sync;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Lets a sync be stopped from another thread while it runs.
+ *
+ * The stages of a sync check it between units of work (before connecting, between parsed days,
+ * before committing).  A read blocked on the network can't check anything, so connections are
+ * attached while they are open and disconnected on cancel, which fails the read at once.
+ */
+public class SyncCancellation {
+
+    // All guarded by this
+    private final Set<HttpURLConnection> mConnections = new HashSet<HttpURLConnection>();
+    private boolean mCanceled;
+
+    /**
+     * Cancels the sync and pulls every connection it has open.  Safe to call from any thread,
+     * and more than once.
+     */
+    public void cancel() {
+        List<HttpURLConnection> connections;
+        synchronized (this) {
+            if (mCanceled) {
+                return;
+            }
+            mCanceled = true;
+            connections = new ArrayList<HttpURLConnection>(mConnections);
+            mConnections.clear();
+        }
+        // Outside the lock: disconnecting can block for a moment on the socket
+        for (HttpURLConnection connection : connections) {
+            connection.disconnect();
+        }
+    }
+
+    public synchronized boolean isCanceled() {
+        return mCanceled;
+    }
+
+    public void throwIfCanceled() throws SyncCanceledException {
+        if (isCanceled()) {
+            throw new SyncCanceledException();
+        }
+    }
+
+    /**
+     * Has the connection disconnected if the sync is canceled before it is detached.
+     *
+     * @throws SyncCanceledException if the sync has already been canceled
+     */
+    public synchronized void attach(HttpURLConnection connection) throws SyncCanceledException {
+        throwIfCanceled();
+        mConnections.add(connection);
+    }
+
+    public synchronized void detach(HttpURLConnection connection) {
+        mConnections.remove(connection);
+    }
+}
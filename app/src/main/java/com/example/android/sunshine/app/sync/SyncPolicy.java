@@ -0,0 +1,93 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.os.BatteryManager;
+import android.support.v4.net.ConnectivityManagerCompat;
+
+import com.example.android.sunshine.app.Utility;
+
+/**
+ * Decides what a sync may spend given the network it is on and whether the device is charging.
+ *
+ * Refreshing today is a request for a single day, so it runs on any network.  The full forecast
+ * of every tracked location and the weather art are many times that, so on a metered network
+ * they wait for Wi-Fi or a charger.  The user asking for a sync overrides that for the forecast,
+ * since they are waiting on it; the art can always wait.
+ */
+public class SyncPolicy {
+
+    /**
+     * What the policy needs to know about the device, so that tests can supply their own.
+     */
+    public interface DeviceState {
+        boolean isNetworkAvailable();
+
+        boolean isActiveNetworkMetered();
+
+        boolean isCharging();
+    }
+
+    private final DeviceState mState;
+
+    public SyncPolicy(DeviceState state) {
+        mState = state;
+    }
+
+    /**
+     * @return the state of this device as the system reports it right now
+     */
+    public static DeviceState getDeviceState(final Context context) {
+        final Context appContext = context.getApplicationContext();
+        return new DeviceState() {
+            @Override
+            public boolean isNetworkAvailable() {
+                return Utility.isNetworkAvailable(appContext);
+            }
+
+            @Override
+            public boolean isActiveNetworkMetered() {
+                ConnectivityManager cm = (ConnectivityManager)
+                        appContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+                return ConnectivityManagerCompat.isActiveNetworkMetered(cm);
+            }
+
+            @Override
+            public boolean isCharging() {
+                // The battery broadcast is sticky, so this reads it without registering anything
+                Intent battery = appContext.registerReceiver(null,
+                        new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+                return battery != null
+                        && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+            }
+        };
+    }
+
+    /**
+     * @return whether large transfers may go ahead: the network doesn't charge by the byte, or
+     * the device is on a charger
+     */
+    public boolean isUnrestricted() {
+        return mState.isNetworkAvailable()
+                && (!mState.isActiveNetworkMetered() || mState.isCharging());
+    }
+
+    /**
+     * @param requestedTier the tier the sync was requested with
+     * @param manual whether the user asked for the sync
+     * @return the tier to actually run, which is SYNC_TIER_CURRENT in place of a full sync that
+     * has to wait
+     */
+    public int getTier(int requestedTier, boolean manual) {
+        if (requestedTier == SunshineSyncAdapter.SYNC_TIER_FULL && !manual && !isUnrestricted()) {
+            return SunshineSyncAdapter.SYNC_TIER_CURRENT;
+        }
+        return requestedTier;
+    }
+
+    public boolean allowsArtPrefetch() {
+        return isUnrestricted();
+    }
+}
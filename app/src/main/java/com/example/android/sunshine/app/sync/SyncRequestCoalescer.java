@@ -0,0 +1,131 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Collapses bursts of immediate sync requests into one expedited sync per location.
+ *
+ * Requests are held for a short quiet period, so editing several preferences in a row or
+ * creating the account and then changing the location costs a single fetch.  A request for a
+ * location that is already being synced is merged into that sync instead of queueing another
+ * one behind it, and so is a pending request for a location a sync has just started on.  Once
+ * the running sync is canceled nothing is merged into it any more.
+ */
+public class SyncRequestCoalescer {
+    public final String LOG_TAG = SyncRequestCoalescer.class.getSimpleName();
+
+    // How long requests must stop coming before we sync
+    static final long DEBOUNCE_MILLIS = 1000;
+    // A steady stream of requests still syncs this long after the first one
+    static final long MAX_WAIT_MILLIS = 5000;
+
+    interface SyncDispatcher {
+        void requestSync(String locationSetting);
+    }
+
+    private static SyncRequestCoalescer sInstance;
+
+    private final Handler mHandler;
+    private final long mDebounceMillis;
+    private final long mMaxWaitMillis;
+    private final SyncDispatcher mDispatcher;
+
+    // All guarded by this
+    private final Set<String> mPending = new LinkedHashSet<String>();
+    private final Set<String> mInFlight = new HashSet<String>();
+    private long mFirstPendingAt;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public static synchronized SyncRequestCoalescer getInstance(Context context) {
+        if (sInstance == null) {
+            final Context appContext = context.getApplicationContext();
+            sInstance = new SyncRequestCoalescer(Looper.getMainLooper(), DEBOUNCE_MILLIS,
+                    MAX_WAIT_MILLIS, new SyncDispatcher() {
+                        @Override
+                        public void requestSync(String locationSetting) {
+                            SunshineSyncAdapter.requestLocationSync(appContext, locationSetting);
+                        }
+                    });
+        }
+        return sInstance;
+    }
+
+    SyncRequestCoalescer(Looper looper, long debounceMillis, long maxWaitMillis,
+                         SyncDispatcher dispatcher) {
+        mHandler = new Handler(looper);
+        mDebounceMillis = debounceMillis;
+        mMaxWaitMillis = maxWaitMillis;
+        mDispatcher = dispatcher;
+    }
+
+    /**
+     * Asks for the location to be synced soon.  Safe to call from any thread.
+     */
+    public synchronized void request(String locationSetting) {
+        if (mInFlight.contains(locationSetting)) {
+            Log.d(LOG_TAG, "Merged request for " + locationSetting + " into the running sync");
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        if (mPending.isEmpty()) {
+            mFirstPendingAt = now;
+        }
+        mPending.add(locationSetting);
+
+        mHandler.removeCallbacks(mFlush);
+        mHandler.postAtTime(mFlush,
+                Math.min(now + mDebounceMillis, mFirstPendingAt + mMaxWaitMillis));
+    }
+
+    /**
+     * Called by the sync adapter before it fetches these locations.
+     */
+    public synchronized void onSyncStarted(Collection<String> locationSettings) {
+        mInFlight.addAll(locationSettings);
+        // Whatever was waiting for these is about to be fetched anyway
+        mPending.removeAll(locationSettings);
+    }
+
+    /**
+     * Called when the running sync is being canceled.  It won't finish the locations it
+     * started on, so requests for them have to be queued again rather than merged into it.
+     */
+    public synchronized void onSyncCanceled() {
+        mInFlight.clear();
+    }
+
+    /**
+     * Called by the sync adapter once it is done with these locations, successfully or not.
+     */
+    public synchronized void onSyncFinished(Collection<String> locationSettings) {
+        mInFlight.removeAll(locationSettings);
+    }
+
+    private void flush() {
+        List<String> locationSettings;
+        synchronized (this) {
+            locationSettings = new ArrayList<String>(mPending);
+            mPending.clear();
+        }
+        for (String locationSetting : locationSettings) {
+            mDispatcher.requestSync(locationSetting);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.example.android.sunshine.app.sync;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Works out how long to wait before the next periodic sync.
+ *
+ * Every sync reports how many of the days it fetched actually changed.  Those results are
+ * folded into a volatility score between 0 (nothing ever changes) and 1 (everything changes
+ * every time), and the interval is stretched for stable forecasts and shortened for volatile
+ * ones.  Independently of that, when local midnight falls before the next sync would, the sync
+ * is moved to just after midnight so "today" rolls over promptly.
+ *
+ * Intervals are in seconds, like the ones ContentResolver takes for periodic syncs.
+ */
+public class SyncScheduler {
+
+    static final int MIN_INTERVAL = 60 * 60;
+    static final int MAX_INTERVAL = 60 * 300;
+
+    // Intervals are rounded to this so that small swings in volatility don't reprogram the
+    // periodic sync after every run
+    static final int INTERVAL_STEP = 60 * 15;
+
+    // How soon after midnight the rollover sync should land
+    static final int MIDNIGHT_WINDOW = 60 * 15;
+
+    // With no history a forecast counts as middling, which gives the old fixed three hours
+    public static final float INITIAL_VOLATILITY = 0.5f;
+
+    // How much the latest sync counts against everything before it
+    static final float VOLATILITY_WEIGHT = 0.5f;
+
+    private final Clock mClock;
+    private final TimeZone mTimeZone;
+    private float mVolatility;
+
+    /**
+     * @param clock where the current time comes from
+     * @param timeZone the zone whose midnight the forecast rolls over at
+     * @param volatility the score saved from the last sync, or INITIAL_VOLATILITY
+     */
+    public SyncScheduler(Clock clock, TimeZone timeZone, float volatility) {
+        mClock = clock;
+        mTimeZone = timeZone;
+        mVolatility = Math.max(0f, Math.min(1f, volatility));
+    }
+
+    /**
+     * Folds the outcome of a sync into the volatility score.
+     *
+     * @param changedDays how many days were written because they differed from what we had
+     * @param syncedDays how many days were fetched successfully; 0 tells us nothing
+     */
+    public void onSyncResult(int changedDays, int syncedDays) {
+        if (syncedDays <= 0) {
+            return;
+        }
+        float changedFraction = Math.min(1f, (float) changedDays / syncedDays);
+        mVolatility = VOLATILITY_WEIGHT * changedFraction + (1 - VOLATILITY_WEIGHT) * mVolatility;
+    }
+
+    public float getVolatility() {
+        return mVolatility;
+    }
+
+    /**
+     * @return seconds until the next periodic sync should run
+     */
+    public int getSyncInterval() {
+        int interval = getVolatilityInterval();
+        int untilMidnight = getSecondsUntilMidnight();
+        if (untilMidnight + MIDNIGHT_WINDOW < interval) {
+            return untilMidnight + MIDNIGHT_WINDOW;
+        }
+        return interval;
+    }
+
+    /**
+     * @return how much earlier than getSyncInterval() the system may run the sync
+     */
+    public int getFlexTime() {
+        int interval = getVolatilityInterval();
+        if (getSecondsUntilMidnight() + MIDNIGHT_WINDOW < interval) {
+            // Don't let the flex pull the rollover sync back before midnight
+            return MIDNIGHT_WINDOW;
+        }
+        return interval / 3;
+    }
+
+    private int getVolatilityInterval() {
+        float interval = MAX_INTERVAL - mVolatility * (MAX_INTERVAL - MIN_INTERVAL);
+        return Math.round(interval / INTERVAL_STEP) * INTERVAL_STEP;
+    }
+
+    int getSecondsUntilMidnight() {
+        long now = mClock.currentTimeMillis();
+        Calendar midnight = Calendar.getInstance(mTimeZone);
+        midnight.setTimeInMillis(now);
+        midnight.set(Calendar.HOUR_OF_DAY, 0);
+        midnight.set(Calendar.MINUTE, 0);
+        midnight.set(Calendar.SECOND, 0);
+        midnight.set(Calendar.MILLISECOND, 0);
+        midnight.add(Calendar.DAY_OF_MONTH, 1);
+        return (int) ((midnight.getTimeInMillis() - now) / 1000);
+    }
+}
@@ -0,0 +1,122 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.ContentValues;
+
+import com.example.android.sunshine.app.BuildConfig;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Times the stages of a sync for one location, or of the pass as a whole, and turns them into
+ * rows for the sync_history table.
+ *
+ * Since the forecast is parsed while it downloads, the response stream can be metered through
+ * meterDownload: the time spent blocked in its reads is the download, and the rest of the time
+ * spent parsing is the parse.
+ */
+public class SyncTrace {
+
+    private final long mSyncStarted;
+    private final String mLocationSetting;
+    private final List<ContentValues> mRows = new ArrayList<ContentValues>();
+    private MeteredInputStream mDownload;
+
+    /**
+     * @param syncStarted when the pass started, in milliseconds since the epoch
+     * @param locationSetting the location being synced, or null for the pass as a whole
+     */
+    public SyncTrace(long syncStarted, String locationSetting) {
+        mSyncStarted = syncStarted;
+        mLocationSetting = locationSetting;
+    }
+
+    /**
+     * Records a stage that started at startNanos (from System.nanoTime) and has just ended.
+     */
+    public void record(String stage, long startNanos) {
+        record(stage, startNanos, 0);
+    }
+
+    public void record(String stage, long startNanos, int rows) {
+        addRow(stage, System.nanoTime() - startNanos, 0, rows);
+    }
+
+    /**
+     * Wraps the raw response stream so that the bytes read and the time spent reading them
+     * can be reported by recordDownloadAndParse.
+     */
+    public InputStream meterDownload(InputStream in) {
+        if (in == null) {
+            return null;
+        }
+        mDownload = new MeteredInputStream(in);
+        return mDownload;
+    }
+
+    /**
+     * Records the download and the parse of a streamed response, which started at startNanos
+     * and has just ended.
+     */
+    public void recordDownloadAndParse(long startNanos, int rows) {
+        long elapsedNanos = System.nanoTime() - startNanos;
+        long readNanos = mDownload == null ? 0 : mDownload.mReadNanos;
+        long bytes = mDownload == null ? 0 : mDownload.mBytes;
+        addRow(WeatherContract.SyncHistoryEntry.STAGE_DOWNLOAD, readNanos, bytes, 0);
+        addRow(WeatherContract.SyncHistoryEntry.STAGE_PARSE, elapsedNanos - readNanos, 0, rows);
+    }
+
+    public List<ContentValues> getRows() {
+        return mRows;
+    }
+
+    private void addRow(String stage, long durationNanos, long bytes, int rows) {
+        ContentValues values = new ContentValues();
+        values.put(WeatherContract.SyncHistoryEntry.COLUMN_SYNC_STARTED, mSyncStarted);
+        values.put(WeatherContract.SyncHistoryEntry.COLUMN_APP_VERSION, BuildConfig.VERSION_CODE);
+        values.put(WeatherContract.SyncHistoryEntry.COLUMN_LOCATION_SETTING, mLocationSetting);
+        values.put(WeatherContract.SyncHistoryEntry.COLUMN_STAGE, stage);
+        values.put(WeatherContract.SyncHistoryEntry.COLUMN_DURATION, durationNanos / 1000);
+        values.put(WeatherContract.SyncHistoryEntry.COLUMN_BYTES, bytes);
+        values.put(WeatherContract.SyncHistoryEntry.COLUMN_ROWS, rows);
+        mRows.add(values);
+    }
+
+    /**
+     * Counts the bytes read through it and the time spent waiting for them.
+     */
+    private static class MeteredInputStream extends FilterInputStream {
+        long mBytes;
+        long mReadNanos;
+
+        MeteredInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            long start = System.nanoTime();
+            int b = super.read();
+            mReadNanos += System.nanoTime() - start;
+            if (b != -1) {
+                mBytes++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            long start = System.nanoTime();
+            int read = super.read(buffer, offset, count);
+            mReadNanos += System.nanoTime() - start;
+            if (read > 0) {
+                mBytes += read;
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.example.android.sunshine.app.sync;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.util.Log;
+
+import com.bumptech.glide.Glide;
+import com.bumptech.glide.request.FutureTarget;
+import com.bumptech.glide.request.target.Target;
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Downloads the art of a remote art pack for the forecast the sync just stored, so that the
+ * forecast list, the detail view, the widgets and the notification find it in Glide's disk
+ * cache instead of each going to the network the first time they show it.
+ *
+ * The sizes the views want aren't known here, so it is the downloaded image that is cached.
+ * The consumers load with DiskCacheStrategy.ALL, which decodes their own size from it and
+ * caches that too.
+ */
+public class WeatherArtPrefetcher {
+    private static final String LOG_TAG = WeatherArtPrefetcher.class.getSimpleName();
+
+    // A slow art server shouldn't hold up the rest of the sync for long
+    private static final long DOWNLOAD_TIMEOUT_SECONDS = 15;
+
+    // Returned by prefetch when SyncPolicy holds the art back for a better network
+    public static final int PREFETCH_DEFERRED = -1;
+
+    private WeatherArtPrefetcher() {
+    }
+
+    /**
+     * Makes sure the art for every condition in the location's forecast, from today on, is in
+     * the disk cache.  Art that is already there costs a disk lookup.  Blocks until it is all
+     * in or the sync is canceled, so call it off the main thread.
+     *
+     * @return the number of distinct images fetched or found, or PREFETCH_DEFERRED if the
+     * policy doesn't allow downloading art right now
+     */
+    public static int prefetch(Context context, String locationSetting, SyncPolicy policy,
+                               SyncCancellation cancellation) {
+        if (Utility.usingLocalGraphics(context)) {
+            return 0;
+        }
+        if (!policy.allowsArtPrefetch()) {
+            return PREFETCH_DEFERRED;
+        }
+        Set<String> artUrls = getArtUrls(context, getWeatherIds(context, locationSetting));
+        if (cancellation.isCanceled()) {
+            return 0;
+        }
+
+        // Glide downloads on its own threads, so start them all before waiting on any
+        List<FutureTarget<File>> downloads = new ArrayList<FutureTarget<File>>(artUrls.size());
+        for (String artUrl : artUrls) {
+            downloads.add(Glide.with(context)
+                    .load(artUrl)
+                    .downloadOnly(Target.SIZE_ORIGINAL, Target.SIZE_ORIGINAL));
+        }
+        int fetched = 0;
+        try {
+            for (FutureTarget<File> download : downloads) {
+                if (cancellation.isCanceled()) {
+                    break;
+                }
+                try {
+                    download.get(DOWNLOAD_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                    fetched++;
+                } catch (ExecutionException | TimeoutException e) {
+                    Log.w(LOG_TAG, "Error prefetching weather art", e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        } finally {
+            // Releases what finished and cancels what didn't
+            for (FutureTarget<File> download : downloads) {
+                Glide.clear(download);
+            }
+        }
+        return fetched;
+    }
+
+    /**
+     * @return the art URLs of the current art pack for the conditions, each one only once
+     */
+    static Set<String> getArtUrls(Context context, Collection<Integer> weatherIds) {
+        // Many conditions share an image, so there are far fewer of these than of days
+        Set<String> artUrls = new LinkedHashSet<String>();
+        for (int weatherId : weatherIds) {
+            String artUrl = Utility.getArtUrlForWeatherCondition(context, weatherId);
+            if (artUrl != null) {
+                artUrls.add(artUrl);
+            }
+        }
+        return artUrls;
+    }
+
+    private static Set<Integer> getWeatherIds(Context context, String locationSetting) {
+        Set<Integer> weatherIds = new LinkedHashSet<Integer>();
+        Cursor cursor = context.getContentResolver().query(
+                WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                        locationSetting, System.currentTimeMillis()),
+                new String[]{WeatherContract.WeatherEntry.COLUMN_WEATHER_ID},
+                null,
+                null,
+                null);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    weatherIds.add(cursor.getInt(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return weatherIds;
+    }
+}
@@ -0,0 +1,35 @@
+package com.example.android.sunshine.app.sync;
+
+import org.json.JSONException;
+
+import java.io.IOException;
+
+/**
+ * Somewhere the sync can get forecasts from.  Implementations must be safe to call from
+ * several threads at once, since locations are synced in parallel.
+ */
+public interface WeatherSource {
+
+    /**
+     * Fetches the forecast for one location.
+     *
+     * @param request the location, and what we remember about it
+     * @param trace where the time spent in each stage of the fetch is recorded
+     * @param cancellation stops the fetch promptly, wherever it is, when the sync is canceled
+     * @return the forecast, or the reason there isn't one
+     * @throws SyncCanceledException if the sync was canceled before the fetch was done
+     * @throws IOException if the source couldn't be reached or the response was cut short
+     * @throws JSONException if the response couldn't be understood
+     */
+    Forecast fetchForecast(ForecastRequest request, SyncTrace trace,
+                           SyncCancellation cancellation) throws IOException, JSONException;
+
+    /**
+     * Fetches the 3-hour forecast for one location, as slots rather than days.  The request's
+     * cache validators are not used.
+     *
+     * @see #fetchForecast
+     */
+    Forecast fetchIntraday(ForecastRequest request, SyncTrace trace,
+                           SyncCancellation cancellation) throws IOException, JSONException;
+}